@@ -0,0 +1,112 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 GreenVulcano ESB Open Source Project.
+ * All rights reserved.
+ *
+ * This file is part of GreenVulcano ESB.
+ *
+ * GreenVulcano ESB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GreenVulcano ESB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with GreenVulcano ESB. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package it.greenvulcano.gvesb.channel.mqtt;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Delivery of an inbound message by {@link ChannelConnection#messageArrived(String, MqttMessage)}
+ * to the listeners of the connection: <code>route</code> reaches one of N listeners,
+ * <code>broadcast</code> all of them. The connection is never connected, messages are handed to it
+ * as by the MQTT client thread.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DispatchBenchmark {
+
+	@Param({ "1", "10", "100", "1000" })
+	int listeners;
+
+	private ScheduledExecutorService scheduler;
+	private ChannelConnection routing, broadcasting;
+	private final MqttMessage message = new MqttMessage(new byte[256]);
+	private String[] topics;
+	private int next;
+
+	/**
+	 * @return a connection accepting subscriptions and messages without a broker
+	 */
+	static ChannelConnection disconnected(String clientId, ScheduledExecutorService scheduler) throws MqttException {
+		return new ChannelConnection("tcp://127.0.0.1:1883", clientId, new MqttConnectOptions(), new MemoryPersistence(),
+									 scheduler, new ReconnectPolicy(1000, 60000, 10000), new ChannelMetrics(null));
+	}
+
+	@Setup
+	public void setUp() throws MqttException {
+		scheduler = Executors.newSingleThreadScheduledExecutor();
+		routing = disconnected("dispatch-route", scheduler);
+		broadcasting = disconnected("dispatch-broadcast", scheduler);
+		topics = new String[listeners];
+		for (int i = 0; i < listeners; i++) {
+			topics[i] = "devices/" + i + "/sensor/telemetry";
+			StubListener device = new StubListener("devices/" + i + "/+/telemetry", 1, 0);
+			routing.subscribe(device, device.getTopic());
+			StubListener any = new StubListener("devices/+/+/telemetry", 1, 0);
+			broadcasting.subscribe(any, any.getTopic());
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		// the connections are never started, so they create no MQTT client to close
+		scheduler.shutdownNow();
+	}
+
+	private String nextTopic() {
+		if (next == topics.length) {
+			next = 0;
+		}
+		return topics[next++];
+	}
+
+	@Benchmark
+	public void route() throws Exception {
+		routing.messageArrived(nextTopic(), message);
+	}
+
+	@Benchmark
+	public void broadcast() throws Exception {
+		broadcasting.messageArrived(nextTopic(), message);
+	}
+
+}
@@ -0,0 +1,134 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 GreenVulcano ESB Open Source Project.
+ * All rights reserved.
+ *
+ * This file is part of GreenVulcano ESB.
+ *
+ * GreenVulcano ESB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GreenVulcano ESB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with GreenVulcano ESB. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package it.greenvulcano.gvesb.channel.mqtt;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.MqttTopic;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import it.greenvulcano.gvesb.channel.mqtt.MqttChannel.SubscriptionListener;
+
+/**
+ * Dispatch throughput while a thread keeps subscribing and unsubscribing a listener,
+ * as a configuration reload adding and removing listeners does.
+ * <code>snapshot</code> delivers through the immutable subscriptions snapshot of {@link ChannelConnection},
+ * <code>locked</code> through a synchronized set iterated under its monitor, as the channel did before:
+ * there every subscription change waits for the deliveries in progress, and the deliveries for it.
+ * Each listener spends <code>work</code> CPU tokens per message, standing in for the forward to GreenVulcano.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DispatchChurnBenchmark {
+
+	private static final String TOPIC = "devices/7/sensor/telemetry";
+
+	@Param({ "10", "100" })
+	int listeners;
+
+	@Param({ "100" })
+	long work;
+
+	private ScheduledExecutorService scheduler;
+	private ChannelConnection connection;
+	private Set<SubscriptionListener> locked;
+	private final MqttMessage message = new MqttMessage(new byte[256]);
+	private final StubListener churning = new StubListener("devices/+/sensor/telemetry", 1, 0);
+
+	@Setup
+	public void setUp() throws MqttException {
+		scheduler = Executors.newSingleThreadScheduledExecutor();
+		connection = DispatchBenchmark.disconnected("dispatch-churn", scheduler);
+		locked = Collections.synchronizedSet(new LinkedHashSet<>());
+		for (int i = 0; i < listeners; i++) {
+			// one listener in ten matches the topic
+			StubListener listener = new StubListener(i % 10 == 0 ? "devices/+/sensor/telemetry" : "devices/" + i + "/+/status", 1, work);
+			connection.subscribe(listener, listener.getTopic());
+			locked.add(listener);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		// the connection is never started, so it creates no MQTT client to close
+		scheduler.shutdownNow();
+	}
+
+	@Benchmark
+	@Group("snapshot")
+	@GroupThreads(3)
+	public void snapshotDispatch() throws Exception {
+		connection.messageArrived(TOPIC, message);
+	}
+
+	@Benchmark
+	@Group("snapshot")
+	@GroupThreads(1)
+	public void snapshotChurn() {
+		connection.subscribe(churning, churning.getTopic());
+		connection.unsubscribe(churning);
+	}
+
+	@Benchmark
+	@Group("locked")
+	@GroupThreads(3)
+	public void lockedDispatch() {
+		synchronized (locked) {
+			for (SubscriptionListener listener : locked) {
+				if (MqttTopic.isMatched(listener.getTopic(), TOPIC)) {
+					listener.processMessage(TOPIC, message);
+				}
+			}
+		}
+	}
+
+	@Benchmark
+	@Group("locked")
+	@GroupThreads(1)
+	public void lockedChurn() {
+		locked.add(churning);
+		locked.remove(churning);
+	}
+
+}
@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 GreenVulcano ESB Open Source Project.
+ * All rights reserved.
+ *
+ * This file is part of GreenVulcano ESB.
+ *
+ * GreenVulcano ESB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GreenVulcano ESB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with GreenVulcano ESB. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package it.greenvulcano.gvesb.channel.mqtt;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import it.greenvulcano.gvesb.channel.mqtt.MqttChannel.SubscriptionListener;
+
+/**
+ * Publish to receive through a Moquette broker on loopback, at each QoS, between two {@link MqttChannel}s
+ * as between two nodes: the subscriber channel delivers to a listener standing in for the GreenVulcano flow.
+ * A single client publishing and receiving on the same connection is much slower,
+ * its acknowledges being held by Nagle's algorithm (Paho does not set TCP_NODELAY).
+ * <code>roundTrip</code> samples the latency of a single message,
+ * <code>pipelined</code> the throughput of batches published without waiting for each acknowledge,
+ * bounded by the in-flight window of the channel.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EndToEndBenchmark {
+
+	private static final String TOPIC = "benchmarks/e2e";
+	private static final int BATCH = 100;
+	private static final long RECEIVE_TIMEOUT = 10;
+
+	@Param({ "0", "1", "2" })
+	int qos;
+
+	@Param({ "256" })
+	int payloadSize;
+
+	@Param({ "10" })
+	int maxInflight;
+
+	private LoopbackBroker broker;
+	private MqttChannel publisher, subscriber;
+	private Receiver receiver;
+	private byte[] payload;
+
+	@Setup
+	public void setUp() throws Exception {
+		broker = new LoopbackBroker();
+		publisher = channel("publisher");
+		subscriber = channel("subscriber");
+		receiver = new Receiver(qos);
+		subscriber.registerListener(receiver);
+		CompletableFuture.allOf(publisher.start(), subscriber.start()).get(10, TimeUnit.SECONDS);
+		payload = new byte[payloadSize];
+
+		// the subscription is acknowledged after the connection: wait for the first message to come back
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(RECEIVE_TIMEOUT);
+		do {
+			publisher.publish(TOPIC, payload, qos);
+		} while (!receiver.arrived.tryAcquire(100, TimeUnit.MILLISECONDS) && System.nanoTime() < deadline);
+		receiver.arrived.drainPermits();
+	}
+
+	@TearDown
+	public void tearDown() {
+		if (publisher != null) {
+			publisher.dismiss();
+		}
+		if (subscriber != null) {
+			subscriber.dismiss();
+		}
+		if (broker != null) {
+			broker.close();
+		}
+	}
+
+	private MqttChannel channel(String id) throws MqttException {
+		return new MqttChannel("tcp", "127.0.0.1", broker.getPort(), null, null, id, "benchmarks", "benchmarks/" + id + "-" + qos,
+							   true, maxInflight, 1, null, MemoryPersistence::new, new ReconnectPolicy(100, 1000, 10000));
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public void roundTrip() throws Exception {
+		publisher.publish(TOPIC, payload, qos);
+		receiver.await(1);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@OperationsPerInvocation(BATCH)
+	public void pipelined() throws Exception {
+		CompletableFuture<?>[] deliveries = new CompletableFuture<?>[BATCH];
+		for (int i = 0; i < BATCH; i++) {
+			deliveries[i] = publisher.publishAsync(TOPIC, payload, qos);
+		}
+		CompletableFuture.allOf(deliveries).get(RECEIVE_TIMEOUT, TimeUnit.SECONDS);
+		receiver.await(BATCH);
+	}
+
+	private static final class Receiver implements SubscriptionListener {
+
+		private final int qos;
+		private final Semaphore arrived = new Semaphore(0);
+
+		Receiver(int qos) {
+			this.qos = qos;
+		}
+
+		void await(int messages) throws InterruptedException, TimeoutException {
+			if (!arrived.tryAcquire(messages, RECEIVE_TIMEOUT, TimeUnit.SECONDS)) {
+				throw new TimeoutException("Messages not received: " + messages);
+			}
+		}
+
+		@Override
+		public String getTopic() {
+			return TOPIC;
+		}
+
+		@Override
+		public Integer getQoS() {
+			return qos;
+		}
+
+		@Override
+		public void stop() {
+			// nothing to release
+		}
+
+		@Override
+		public void processMessage(String topic, MqttMessage message) {
+			arrived.release();
+		}
+	}
+
+}
@@ -0,0 +1,65 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 GreenVulcano ESB Open Source Project.
+ * All rights reserved.
+ *
+ * This file is part of GreenVulcano ESB.
+ *
+ * GreenVulcano ESB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GreenVulcano ESB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with GreenVulcano ESB. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package it.greenvulcano.gvesb.channel.mqtt;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Properties;
+
+import io.moquette.BrokerConstants;
+import io.moquette.broker.Server;
+import io.moquette.broker.config.IConfig;
+import io.moquette.broker.config.MemoryConfig;
+
+/**
+ * Moquette broker listening on a free loopback port, keeping its state in memory
+ */
+final class LoopbackBroker implements AutoCloseable {
+
+	private final Server server = new Server();
+	private final int port;
+
+	LoopbackBroker() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			port = socket.getLocalPort();
+		}
+
+		Properties properties = new Properties();
+		properties.setProperty(IConfig.HOST_PROPERTY_NAME, "127.0.0.1");
+		properties.setProperty(IConfig.PORT_PROPERTY_NAME, String.valueOf(port));
+		properties.setProperty(IConfig.ALLOW_ANONYMOUS_PROPERTY_NAME, "true");
+		properties.setProperty(IConfig.PERSISTENCE_ENABLED_PROPERTY_NAME, "false");
+		properties.setProperty(IConfig.ENABLE_TELEMETRY_NAME, "false");
+		// writes are otherwise batched by a periodic flush, adding its period to the latencies
+		properties.setProperty(BrokerConstants.BUFFER_FLUSH_MS_PROPERTY_NAME, String.valueOf(BrokerConstants.IMMEDIATE_BUFFER_FLUSH));
+		properties.setProperty(BrokerConstants.NETTY_TCP_NODELAY_PROPERTY_NAME, "true");
+		server.startServer(new MemoryConfig(properties));
+	}
+
+	int getPort() {
+		return port;
+	}
+
+	@Override
+	public void close() {
+		server.stopServer();
+	}
+
+}
@@ -0,0 +1,109 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 GreenVulcano ESB Open Source Project.
+ * All rights reserved.
+ *
+ * This file is part of GreenVulcano ESB.
+ *
+ * GreenVulcano ESB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GreenVulcano ESB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with GreenVulcano ESB. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package it.greenvulcano.gvesb.channel.mqtt;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compression and decompression throughput of the built-in {@link PayloadCodec}s on payloads of about <code>size</code> bytes:
+ * JSON and XML telemetry, and random bytes that compression cannot reduce (sent as they are, after the attempt).
+ * The compression ratio of each combination is printed when the trial starts.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PayloadCodecBenchmark {
+
+	@Param({ "deflate", "gzip" })
+	String codec;
+
+	@Param({ "json", "xml", "binary" })
+	String payloadType;
+
+	@Param({ "1024", "65536" })
+	int size;
+
+	private PayloadCodec payloadCodec;
+	private byte[] payload;
+	private byte[] encoded;
+
+	@Setup
+	public void setUp() throws IOException {
+		payloadCodec = PayloadCodecs.getCodec(codec).orElseThrow(() -> new IllegalArgumentException("Invalid codec: " + codec));
+		payload = payload(payloadType, size);
+		encoded = PayloadCodecs.encode(payloadCodec, payload, 0);
+		System.out.println(String.format("%s %s %d bytes: compressed to %d bytes, ratio %.3f",
+										 codec, payloadType, payload.length, encoded.length, (double) encoded.length / payload.length));
+	}
+
+	private static byte[] payload(String type, int size) {
+		Random random = new Random(42);
+		if ("binary".equals(type)) {
+			byte[] payload = new byte[size];
+			random.nextBytes(payload);
+			return payload;
+		}
+
+		boolean json = "json".equals(type);
+		StringBuilder text = new StringBuilder(size + 256).append(json ? "{\"device\":\"plant-7/line-2/press\",\"readings\":[" : "<telemetry device=\"plant-7/line-2/press\">");
+		for (int r = 0; text.length() < size; r++) {
+			long timestamp = 1700000000000L + r * 1000L + random.nextInt(50);
+			String value = String.format("%.2f", 20 + random.nextGaussian());
+			if (json) {
+				text.append(r > 0 ? "," : "").append("{\"sensor\":\"temperature-").append(r % 16).append("\",\"timestamp\":").append(timestamp)
+					.append(",\"value\":").append(value).append(",\"unit\":\"C\"}");
+			} else {
+				text.append("<reading sensor=\"temperature-").append(r % 16).append("\" timestamp=\"").append(timestamp)
+					.append("\" value=\"").append(value).append("\" unit=\"C\"/>");
+			}
+		}
+		text.append(json ? "]}" : "</telemetry>");
+		return text.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Benchmark
+	public byte[] compress() throws IOException {
+		return PayloadCodecs.encode(payloadCodec, payload, 0);
+	}
+
+	@Benchmark
+	public byte[] decompress() {
+		return PayloadCodecs.decode(encoded);
+	}
+
+}
@@ -0,0 +1,175 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 GreenVulcano ESB Open Source Project.
+ * All rights reserved.
+ *
+ * This file is part of GreenVulcano ESB.
+ *
+ * GreenVulcano ESB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GreenVulcano ESB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with GreenVulcano ESB. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package it.greenvulcano.gvesb.channel.mqtt;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * In-flight state of QoS 1 publications as Paho stores it: each operation persists a sent message and removes
+ * the one acknowledged <code>inflight</code> messages earlier, with the <code>mapped</code> log,
+ * Paho's default <code>file</code> persistence (a file per message, synced on write) and <code>memory</code> as a baseline.
+ * The mapped log relies on the page cache, so it survives a crash of the process but not of the operating system.
+ * The persistence directory is created in <code>java.io.tmpdir</code>.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PersistenceBenchmark {
+
+	@Param({ "mapped", "file", "memory" })
+	String persistence;
+
+	@Param({ "256", "4096" })
+	int payloadSize;
+
+	@Param({ "10" })
+	int inflight;
+
+	private Path directory;
+	private MqttClientPersistence store;
+	private Message message;
+	private int next;
+
+	@Setup
+	public void setUp() throws IOException, MqttPersistenceException {
+		directory = Files.createTempDirectory("gvmqtt-persistence");
+		switch (persistence) {
+			case "mapped":
+				store = new MappedSegmentPersistence(directory, MappedSegmentPersistence.DEFAULT_SEGMENT_SIZE);
+				break;
+			case "file":
+				store = new MqttDefaultFilePersistence(directory.toString());
+				break;
+			case "memory":
+				store = new MemoryPersistence();
+				break;
+			default:
+				throw new IllegalArgumentException("Invalid persistence: " + persistence);
+		}
+		store.open("benchmarks-persistence", "tcp://127.0.0.1:1883");
+
+		message = new Message(payloadSize);
+		for (next = 0; next < inflight; next++) {
+			store.put(key(next), message);
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws IOException, MqttPersistenceException {
+		store.close();
+		Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Paho keys the sent messages by their message id, between 1 and 65535
+	 */
+	private static String key(int sequence) {
+		return "s-" + (sequence % 65535 + 1);
+	}
+
+	@Benchmark
+	public void sendAndAcknowledge() throws MqttPersistenceException {
+		store.put(key(next), message);
+		store.remove(key(next - inflight));
+		next++;
+	}
+
+	/**
+	 * A PUBLISH packet: fixed and variable header, then the payload
+	 */
+	private static final class Message implements MqttPersistable {
+		private final byte[] header = new byte[32];
+		private final byte[] payload;
+
+		Message(int payloadSize) {
+			payload = new byte[payloadSize];
+		}
+
+		@Override
+		public byte[] getHeaderBytes() {
+			return header;
+		}
+
+		@Override
+		public int getHeaderLength() {
+			return header.length;
+		}
+
+		@Override
+		public int getHeaderOffset() {
+			return 0;
+		}
+
+		@Override
+		public byte[] getPayloadBytes() {
+			return payload;
+		}
+
+		@Override
+		public int getPayloadLength() {
+			return payload.length;
+		}
+
+		@Override
+		public int getPayloadOffset() {
+			return 0;
+		}
+	}
+
+}
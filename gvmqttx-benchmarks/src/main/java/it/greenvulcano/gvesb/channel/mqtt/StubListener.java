@@ -0,0 +1,71 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 GreenVulcano ESB Open Source Project.
+ * All rights reserved.
+ *
+ * This file is part of GreenVulcano ESB.
+ *
+ * GreenVulcano ESB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GreenVulcano ESB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with GreenVulcano ESB. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package it.greenvulcano.gvesb.channel.mqtt;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.openjdk.jmh.infra.Blackhole;
+
+import it.greenvulcano.gvesb.channel.mqtt.MqttChannel.SubscriptionListener;
+
+/**
+ * Listener standing in for a GreenVulcano flow: it spends a fixed amount of CPU for each message
+ */
+final class StubListener implements SubscriptionListener {
+
+	private final String topic;
+	private final int qos;
+	private final long work;
+
+	/** not synchronized: the count of a listener shared by threads is indicative only */
+	long received;
+
+	/**
+	 * @param work CPU tokens spent for each message, as by {@link Blackhole#consumeCPU(long)}
+	 */
+	StubListener(String topic, int qos, long work) {
+		this.topic = topic;
+		this.qos = qos;
+		this.work = work;
+	}
+
+	@Override
+	public String getTopic() {
+		return topic;
+	}
+
+	@Override
+	public Integer getQoS() {
+		return qos;
+	}
+
+	@Override
+	public void stop() {
+		// nothing to release
+	}
+
+	@Override
+	public void processMessage(String topic, MqttMessage message) {
+		if (work > 0) {
+			Blackhole.consumeCPU(work);
+		}
+		received++;
+	}
+
+}
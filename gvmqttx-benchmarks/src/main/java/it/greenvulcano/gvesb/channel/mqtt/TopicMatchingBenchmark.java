@@ -0,0 +1,113 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 GreenVulcano ESB Open Source Project.
+ * All rights reserved.
+ *
+ * This file is part of GreenVulcano ESB.
+ *
+ * GreenVulcano ESB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GreenVulcano ESB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with GreenVulcano ESB. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package it.greenvulcano.gvesb.channel.mqtt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Matching of a topic against the filters of N listeners: the {@link TopicTrie} of the channel
+ * versus the regular expression built by each listener for every message before the trie was introduced
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TopicMatchingBenchmark {
+
+	private static final int TOPICS = 1024;
+
+	@Param({ "10", "100", "1000" })
+	int listeners;
+
+	private List<String> filters;
+	private TopicTrie<String> trie;
+	private String[] topics;
+	private int next;
+
+	@Setup
+	public void setUp() {
+		filters = new ArrayList<>(listeners);
+		for (int i = 0; i < listeners; i++) {
+			switch (i % 4) {
+				case 0:
+					filters.add("plant/" + i + "/+/temperature");
+					break;
+				case 1:
+					filters.add("plant/" + i + "/machine/#");
+					break;
+				case 2:
+					filters.add("plant/" + i + "/machine/status");
+					break;
+				default:
+					filters.add("plant/+/machine/" + i);
+			}
+		}
+		trie = new TopicTrie<>(filters, Function.identity());
+
+		Random random = new Random(42);
+		topics = new String[TOPICS];
+		for (int t = 0; t < TOPICS; t++) {
+			int plant = random.nextInt(listeners);
+			topics[t] = random.nextBoolean() ? "plant/" + plant + "/machine/" + random.nextInt(listeners)
+											 : "plant/" + plant + "/line" + random.nextInt(4) + "/temperature";
+		}
+	}
+
+	private String nextTopic() {
+		return topics[next++ & (TOPICS - 1)];
+	}
+
+	@Benchmark
+	public List<String> trie() {
+		return trie.match(nextTopic());
+	}
+
+	/**
+	 * The former <code>GVSubscriptionListener.isOfInterest</code>, run by every listener
+	 */
+	@Benchmark
+	public void regexPerListener(Blackhole blackhole) {
+		String topic = nextTopic();
+		for (String filter : filters) {
+			String pattern = filter.replace("+", "[^/]+").replace("/#", "(/.*|$)");
+			blackhole.consume(filter.equals(topic) || topic.matches(pattern));
+		}
+	}
+
+}
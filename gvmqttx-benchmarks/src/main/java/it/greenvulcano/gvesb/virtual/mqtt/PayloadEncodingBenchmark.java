@@ -0,0 +1,134 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 GreenVulcano ESB Open Source Project.
+ * All rights reserved.
+ *
+ * This file is part of GreenVulcano ESB.
+ *
+ * GreenVulcano ESB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GreenVulcano ESB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with GreenVulcano ESB. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package it.greenvulcano.gvesb.virtual.mqtt;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Encoding of the GVBuffer object published by <code>mqtt-publish-call</code>, for each type handled by {@link PayloadEncoders}:
+ * the same telemetry document, of <code>records</code> readings, as <code>byte[]</code>, {@link String}, DOM,
+ * {@link JSONObject} and {@link Map}
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PayloadEncodingBenchmark
+{
+    private static final Charset CHARSET = StandardCharsets.UTF_8;
+
+    @Param({ "bytes", "string", "dom", "json", "map" })
+    String type;
+
+    @Param({ "1", "100" })
+    int records;
+
+    private Object object;
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        Map<String, Object> telemetry = telemetry(records);
+        switch (type) {
+            case "bytes":
+                object = new JSONObject(telemetry).toString().getBytes(CHARSET);
+                break;
+            case "string":
+                object = new JSONObject(telemetry).toString();
+                break;
+            case "dom":
+                object = document(telemetry);
+                break;
+            case "json":
+                object = new JSONObject(telemetry);
+                break;
+            case "map":
+                object = telemetry;
+                break;
+            default:
+                throw new IllegalArgumentException("Invalid payload type: " + type);
+        }
+    }
+
+    private static Map<String, Object> telemetry(int records)
+    {
+        List<Map<String, Object>> readings = new ArrayList<>(records);
+        for (int r = 0; r < records; r++) {
+            Map<String, Object> reading = new LinkedHashMap<>();
+            reading.put("sensor", "temperature-" + r);
+            reading.put("timestamp", 1700000000000L + r * 1000L);
+            reading.put("value", 20 + (r % 100) / 10.0);
+            reading.put("unit", "\u00b0C");
+            readings.add(reading);
+        }
+        Map<String, Object> telemetry = new HashMap<>();
+        telemetry.put("device", "plant-7/line-2/press");
+        telemetry.put("readings", readings);
+        return telemetry;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Document document(Map<String, Object> telemetry) throws Exception
+    {
+        Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+        Element root = document.createElement("telemetry");
+        root.setAttribute("device", (String) telemetry.get("device"));
+        document.appendChild(root);
+        for (Map<String, Object> reading : (List<Map<String, Object>>) telemetry.get("readings")) {
+            Element element = document.createElement("reading");
+            reading.forEach((name, value) -> element.setAttribute(name, String.valueOf(value)));
+            root.appendChild(element);
+        }
+        return document;
+    }
+
+    @Benchmark
+    public byte[] encode() throws Exception
+    {
+        return PayloadEncoders.encode(object, CHARSET);
+    }
+
+}
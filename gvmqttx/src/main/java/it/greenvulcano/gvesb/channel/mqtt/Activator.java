@@ -19,47 +19,130 @@
  *******************************************************************************/
 package it.greenvulcano.gvesb.channel.mqtt;
 
+import java.io.IOException;
+import java.net.InetAddress;
 import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
+import it.greenvulcano.configuration.ConfigurationEvent;
+import it.greenvulcano.configuration.ConfigurationListener;
 import it.greenvulcano.configuration.XMLConfig;
 import it.greenvulcano.configuration.XMLConfigException;
 import it.greenvulcano.gvesb.virtual.OperationFactory;
 import it.greenvulcano.gvesb.virtual.mqtt.MQTTPublisherCallOperation;
+import it.greenvulcano.gvesb.virtual.mqtt.MQTTRequestCallOperation;
 
-public class Activator implements BundleActivator {
+public class Activator implements BundleActivator, ConfigurationListener {
 
+	private static final String GV_SYSTEMS = "GVSystems.xml";
+	private static final long STARTUP_TIMEOUT = 30000;
+	
 	private final Logger logger = LoggerFactory.getLogger(getClass());
 	
+	/** the running channels by system/channel */
+	private final Map<String, ChannelSetup> setups = new LinkedHashMap<>();
+	private ServiceRegistration<MqttChannelRegistry> registryService;
+	
     public void start(BundleContext context) {
         logger.debug("Starting bundle GVESB MQTT Channel");
         
         OperationFactory.registerSupplier("mqtt-publish-call", MQTTPublisherCallOperation::new);
+        OperationFactory.registerSupplier("mqtt-request-call", MQTTRequestCallOperation::new);
+        XMLConfig.addConfigurationListener(this, GV_SYSTEMS);
+        reload();
+        registryService = context.registerService(MqttChannelRegistry.class, MqttChannel.getRegistry(), null);
+    }
+
+    @Override
+    public void configurationChanged(ConfigurationEvent event) {
+    	if (event.getCode() == ConfigurationEvent.EVT_FILE_LOADED && GV_SYSTEMS.equals(event.getFile())) {
+    		logger.debug("GVESB MQTT reloading channels configuration");
+    		reload();
+    	}
+    }
+
+    /**
+     * Aligns the running channels to the configuration, applying only the changes:
+     * channels are rebuilt only if their own attributes changed, otherwise only the listeners
+     * added or removed are subscribed or unsubscribed, leaving the connections untouched
+     */
+    private synchronized void reload() {
         try {
         	
-			NodeList mqttChannelList = XMLConfig.getNodeList("GVSystems.xml","//Channel[@type='MQTTAdapter' and @enabled='true']");
+			NodeList mqttChannelList = XMLConfig.getNodeList(GV_SYSTEMS,"//Channel[@type='MQTTAdapter' and @enabled='true']");
 			logger.debug("Found "+ mqttChannelList.getLength() + " MQTT Channel");
-			List<MqttChannel> channels = IntStream.range(0, mqttChannelList.getLength())
+			Map<String, Node> configured = IntStream.range(0, mqttChannelList.getLength())
 									         .mapToObj(mqttChannelList::item)
-									         .map(this::buildChannel)
-									         .filter(Optional::isPresent)
-									         .map(Optional::get)
-									         .collect(Collectors.toList());
+									         .collect(Collectors.toMap(Activator::channelKey, Function.identity(), (a, b) -> a, LinkedHashMap::new));
+			
+			Iterator<Map.Entry<String, ChannelSetup>> running = setups.entrySet().iterator();
+			while (running.hasNext()) {
+				Map.Entry<String, ChannelSetup> setup = running.next();
+				if (!configured.containsKey(setup.getKey())) {
+					logger.info(String.format("GVESB MQTT channel %s removed", setup.getKey()));
+					dismiss(setup.getValue().channel);
+					running.remove();
+				}
+			}
+			
+			List<MqttChannel> channels = new ArrayList<>();
+			configured.forEach((key, node) -> {
+				ChannelSetup setup = setups.get(key);
+				if (setup != null && setup.configuration.equals(describe(node))) {
+					updateListeners(setup, node);
+					return;
+				}
 				
+				// the running channel is replaced only once the new one is built: on failure it keeps serving
+				Optional<ChannelSetup> rebuilt = buildChannel(node);
+				if (!rebuilt.isPresent()) {
+					if (setup != null) {
+						logger.warn(String.format("GVESB MQTT channel %s changed but cannot be rebuilt, keeping the running one", key));
+					}
+					return;
+				}
+				
+				ChannelSetup built = rebuilt.get();
+				if (setup != null) {
+					logger.info(String.format("GVESB MQTT channel %s changed, replacing it", key));
+					setup.channel.supersede(built.channel);
+					dismiss(setup.channel);
+				}
+				setups.put(key, built);
+				channels.add(built.channel);
+			});
 		 
-			MqttChannel.getChannels().addAll(channels);
+			channels.forEach(MqttChannel.registry()::register);
+			startChannels(channels);
 			
 		 } catch (XMLConfigException e) {
 			 logger.error("GVESB MQTT channel setup error", e);
@@ -67,14 +150,104 @@ public class Activator implements BundleActivator {
         
     }
 
+    /**
+     * Connects all the channels in parallel, waiting for them up to the startup timeout:
+     * the ones still unreachable keep connecting in background
+     */
+    private void startChannels(List<MqttChannel> channels) {
+    	if (channels.isEmpty()) {
+    		return;
+    	}
+    	
+    	CompletableFuture<?>[] startups = channels.stream().map(MqttChannel::start).toArray(CompletableFuture[]::new);
+    	try {
+    		CompletableFuture.allOf(startups).get(Long.getLong("gvesb.mqtt.startup.timeout", STARTUP_TIMEOUT), TimeUnit.MILLISECONDS);
+    		logger.debug("GVESB MQTT channels connected");
+    	} catch (TimeoutException e) {
+    		channels.stream()
+    				.filter(c -> !c.isConnected())
+    				.forEach(c -> logger.warn(String.format("GVESB MQTT channel %s/%s not connected yet, connecting in background", c.getSystem(), c.getId())));
+    	} catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    	} catch (ExecutionException e) {
+    		logger.error("GVESB MQTT channel startup error", e.getCause());
+    	}
+    }
+
     public void stop(BundleContext context) {
     	logger.debug("Stopping bundle GVESB MQTT Channel");
-    	MqttChannel.getChannels().stream().forEach(MqttChannel::dismiss);
-    	MqttChannel.getChannels().clear();
+    	if (registryService != null) {
+    		registryService.unregister();
+    		registryService = null;
+    	}
+    	XMLConfig.removeConfigurationListener(this);
+    	synchronized (this) {
+    		setups.clear();
+	    	MqttChannel.registry().getChannels().forEach(MqttChannel::dismiss);
+	    	MqttChannel.registry().clear();
+    	}
+    	MetricsRegistry.unregisterAll();
+    	PayloadCodecs.endPooled();
     }
     
-    private Optional<MqttChannel> buildChannel(Node node) {
+    private void dismiss(MqttChannel channel) {
+    	MqttChannel.registry().unregister(channel);
+    	channel.dismiss();
+    }
+    
+    /**
+     * Subscribes and unsubscribes the listeners added to or removed from the configuration of a running channel
+     */
+    private void updateListeners(ChannelSetup setup, Node node) {
+    	try {
+	    	NodeList listeners = XMLConfig.getNodeList(node, "./mqtt-subscribe-listener");
+	    	Map<String, List<Node>> configured = IntStream.range(0, listeners.getLength())
+	    												  .mapToObj(listeners::item)
+	    												  .collect(Collectors.groupingBy(Activator::describe, LinkedHashMap::new, Collectors.toList()));
+	    	
+	    	setup.listeners.forEach((configuration, running) -> {
+	    		int wanted = configured.getOrDefault(configuration, Collections.emptyList()).size();
+	    		while (running.size() > wanted) {
+	    			setup.channel.unregisterListener(running.remove(running.size() - 1));
+	    		}
+	    	});
+	    	setup.listeners.values().removeIf(List::isEmpty);
+	    	
+	    	configured.forEach((configuration, nodes) -> {
+	    		int running = setup.listeners.getOrDefault(configuration, Collections.emptyList()).size();
+	    		nodes.stream().skip(running).forEach(n -> addListener(setup, n));
+	    	});
+    	} catch (XMLConfigException e) {
+    		logger.error("GVESB MQTT listeners setup error", e);
+    	}
+    }
+    
+    private void addListener(ChannelSetup setup, Node node) {
+    	buildListener(setup.channel, node).ifPresent(listener -> {
+    		setup.channel.registerListener(listener);
+    		setup.listeners.computeIfAbsent(describe(node), k -> new ArrayList<>()).add(listener);
+    	});
+    }
+    
+    private static String channelKey(Node node) {
+    	return XMLConfig.get(node.getParentNode(), "@id-system", null) + "/" + XMLConfig.get(node, "@id-channel", null);
+    }
+    
+    /**
+     * @return the attributes of a configuration element in canonical form, to detect their changes
+     */
+    private static String describe(Node node) {
+    	NamedNodeMap attributes = node.getAttributes();
+    	return IntStream.range(0, attributes.getLength())
+    					.mapToObj(attributes::item)
+    					.map(a -> a.getNodeName() + "=" + a.getNodeValue())
+    					.sorted()
+    					.collect(Collectors.joining(", "));
+    }
+    
+    private Optional<ChannelSetup> buildChannel(Node node) {
 		 MqttChannel mqttChannel = null;
+		 ChannelSetup setup = null;
 		 try {
 			 
 			URI endpoint = URI.create(XMLConfig.get(node, "@endpoint"));
@@ -92,37 +265,145 @@ public class Activator implements BundleActivator {
 				
 			}
 			
-			mqttChannel = new MqttChannel(endpoint.getScheme(), endpoint.getHost(), endpoint.getPort(), username, password,  XMLConfig.get(node, "@id-channel"), XMLConfig.get(node.getParentNode(), "@id-system"));        		 
+			String system = XMLConfig.get(node.getParentNode(), "@id-system");
+			String channel = XMLConfig.get(node, "@id-channel");
+			// the nodes of a consumer group share the configuration: only then the client id needs the node to be unique
+			boolean grouped = XMLConfig.exists(node, "@shared-group") || XMLConfig.exists(node, "./mqtt-subscribe-listener[@group]");
+			String clientId = XMLConfig.get(node, "@client-id", grouped ? system + "/" + channel + "@" + getNodeId() : system + "/" + channel);
+			PersistenceMode persistence = PersistenceMode.valueOf(XMLConfig.get(node, "@persistence", "file").toUpperCase());
+			Path persistenceDirectory = Paths.get(XMLConfig.get(node, "@persistence-dir", System.getProperty("user.dir")));
+			
+			mqttChannel = new MqttChannel(endpoint.getScheme(), endpoint.getHost(), endpoint.getPort(), username, password,  channel, system, clientId,
+										  XMLConfig.getBoolean(node, "@clean-session", true),
+										  XMLConfig.getInteger(node, "@max-inflight", 10), XMLConfig.getInteger(node, "@connections", 1), XMLConfig.get(node, "@shared-group", null),
+										  () -> persistence.create(persistenceDirectory),
+										  new ReconnectPolicy(XMLConfig.getLong(node, "@reconnect-min-delay", 1000), XMLConfig.getLong(node, "@reconnect-max-delay", 60000),
+												  			  XMLConfig.getLong(node, "@connect-wait", 10000)));        		 
+			
+			mqttChannel.configureLanes(PriorityLanes.parseWeights(XMLConfig.get(node, "@lanes", PriorityLanes.DEFAULT_WEIGHTS)),
+									   XMLConfig.getInteger(node, "@lane-workers", Runtime.getRuntime().availableProcessors()),
+									   XMLConfig.getInteger(node, "@lane-queue-size", 1000),
+									   PriorityLanes.Overflow.valueOf(XMLConfig.get(node, "@lane-overflow", "drop-oldest").replace('-', '_').toUpperCase()),
+									   Arrays.stream(XMLConfig.get(node, "@dedicated-lanes", "").split(","))
+									   		 .map(String::trim)
+									   		 .filter(lane -> !lane.isEmpty())
+									   		 .collect(Collectors.toCollection(LinkedHashSet::new)));
+			
+			mqttChannel.configureReplies(XMLConfig.get(node, "@reply-topic", null), XMLConfig.getInteger(node, "@reply-qos", 1));
+			if (XMLConfig.exists(node, "./mqtt-request-call")) {
+				mqttChannel.subscribeReplies();
+			}
+			
+			String outboxDirectory = XMLConfig.get(node, "@outbox-dir", null);
+			if (outboxDirectory != null) {
+				mqttChannel.enableOutbox(Paths.get(outboxDirectory, (system + "_" + channel).replaceAll("[^A-Za-z0-9._-]", "_")),
+										 XMLConfig.getLong(node, "@outbox-max-messages", 100000),
+										 XMLConfig.getLong(node, "@outbox-max-bytes", 256L * 1024 * 1024),
+										 PublishOutbox.Overflow.valueOf(XMLConfig.get(node, "@outbox-overflow", "fail").replace('-', '_').toUpperCase()),
+										 XMLConfig.getInteger(node, "@outbox-batch-size", 100));
+			}
 			
 			NodeList listeners = XMLConfig.getNodeList(node, "./mqtt-subscribe-listener");
 			logger.debug("Found "+ listeners.getLength() + " Listenter for channel "+mqttChannel.getSystem()+"/"+mqttChannel.getId());
 			
-			IntStream.range(0, listeners.getLength())
-			     	 .mapToObj(listeners::item)
-			     	 .map(this::buildListener)
-			     	 .filter(Optional::isPresent)
-			     	 .map(Optional::get)
-			     	 .forEach(mqttChannel::registerListener);			
+			setup = new ChannelSetup(mqttChannel, describe(node));
+			for (int i = 0; i < listeners.getLength(); i++) {
+				addListener(setup, listeners.item(i));
+			}
 			
-		 } catch (MqttException | XMLConfigException e) {
+		 } catch (MqttException | XMLConfigException | IOException | IllegalArgumentException e) {
 			 logger.error("GVESB MQTT channel configuration error", e);
+			 Optional.ofNullable(mqttChannel).ifPresent(MqttChannel::dismiss);
 		 }
 					        	 
-		return Optional.ofNullable(mqttChannel);
+		return Optional.ofNullable(setup);
     }
     
-    private Optional<GVSubscriptionListener> buildListener(Node node) {
+    /**
+     * Identifies this GreenVulcano instance among the nodes sharing the same configuration:
+     * the <code>gvesb.node.id</code> system property if set, the host name otherwise.
+     * It must not change across restarts, since the client id names the broker session and the persistence
+     */
+    private static String getNodeId() throws UnknownHostException {
+    	String nodeId = System.getProperty("gvesb.node.id");
+    	return nodeId != null ? nodeId : InetAddress.getLocalHost().getHostName();
+    }
+    
+    private Optional<GVSubscriptionListener> buildListener(MqttChannel channel, Node node) {
     	GVSubscriptionListener listener = null;
+    	ListenerExecutor executor = null;
     	try {
-    		listener = new GVSubscriptionListener(XMLConfig.get(node, "@topic"), XMLConfig.getInteger(node, "@qos"), 
-						    				      XMLConfig.get(node.getParentNode().getParentNode(), "@id-system"), 
-						    				      XMLConfig.get(node, "@gv-service"), XMLConfig.get(node, "@gv-operation"));    		
+    		String system = XMLConfig.get(node.getParentNode().getParentNode(), "@id-system");
+    		String service = XMLConfig.get(node, "@gv-service");
+    		String operation = XMLConfig.get(node, "@gv-operation");
+    		
+    		String lane = XMLConfig.get(node, "@priority", null);
+    		executor = lane != null ? channel.laneExecutor(lane) : buildExecutor(node, "gvmqtt-" + system + "/" + service + "/" + operation);
+    		listener = new GVSubscriptionListener(XMLConfig.get(node, "@topic"), XMLConfig.get(node, "@group", null), XMLConfig.getInteger(node, "@qos"), 
+						    				      system, channel.getId(), service, operation, executor);    		
+    		listener.setLane(lane);
+    		
+    		listener.setDecompress(XMLConfig.getBoolean(node, "@decompress", true));
+    		if (XMLConfig.exists(node, "@dedup-window-ms")) {
+    			listener.enableDeduplication(MessageIdentity.of(XMLConfig.get(node, "@dedup-key", "payload")),
+    										 XMLConfig.getInteger(node, "@dedup-capacity", 100000),
+    										 XMLConfig.getLong(node, "@dedup-window-ms", 60000));
+    		}
+    		
+    		if (XMLConfig.exists(node, "@batch-size")) {
+    			listener.enableBatching(XMLConfig.getInteger(node, "@batch-size", 100), XMLConfig.getLong(node, "@batch-linger-ms", 100));
+    		}
+    		
+    		if (XMLConfig.exists(node, "@inbound-max-messages") || XMLConfig.exists(node, "@inbound-overflow")) {
+    			Path spillDirectory = Paths.get(XMLConfig.get(node, "@inbound-spill-dir", System.getProperty("user.dir")),
+    											(system + "_" + service + "_" + operation + "_" + listener.getTopic()).replaceAll("[^A-Za-z0-9._-]", "_"));
+    			listener.enableInboundQueue(XMLConfig.getInteger(node, "@inbound-max-messages", 10000),
+    										XMLConfig.getLong(node, "@inbound-max-bytes", 64L * 1024 * 1024),
+    										InboundQueue.Overflow.valueOf(XMLConfig.get(node, "@inbound-overflow", "block").replace('-', '_').toUpperCase()),
+    										spillDirectory);
+    		}
     		
     	} catch (Exception e) {
     		logger.error("GVESB MQTT listener configuration error", e);
+    		if (listener != null) {
+    			listener.stop();
+    			listener = null;
+    		} else {
+    			Optional.ofNullable(executor).ifPresent(ListenerExecutor::shutdown);
+    		}
 		}
 					        	 
 		return Optional.ofNullable(listener);
     }
+    
+    private ListenerExecutor buildExecutor(Node node, String name) {
+    	String dispatch = XMLConfig.get(node, "@dispatch", "sync");
+    	if ("async".equals(dispatch)) {
+    		LaneExecutor.Ordering ordering = LaneExecutor.Ordering.valueOf(XMLConfig.get(node, "@ordering", "none").toUpperCase());
+    		int poolSize = XMLConfig.getInteger(node, "@pool-size", Runtime.getRuntime().availableProcessors());
+    		int queueSize = XMLConfig.getInteger(node, "@queue-size", 1000);
+    		
+    		return new LaneExecutor(name, ordering, poolSize, queueSize);
+    	} else if ("virtual".equals(dispatch)) {
+    		return new VirtualThreadExecutor(name, XMLConfig.getInteger(node, "@max-concurrency", 100));
+    	}
+    	
+    	return null;
+    }
+
+    /**
+     * A running channel with the configuration it was built from
+     */
+    private static final class ChannelSetup {
+    	private final MqttChannel channel;
+    	private final String configuration;
+    	/** the running listeners by configuration */
+    	private final Map<String, List<GVSubscriptionListener>> listeners = new HashMap<>();
+    	
+    	ChannelSetup(MqttChannel channel, String configuration) {
+    		this.channel = channel;
+    		this.configuration = configuration;
+    	}
+    }
 
-}
\ No newline at end of file
+}
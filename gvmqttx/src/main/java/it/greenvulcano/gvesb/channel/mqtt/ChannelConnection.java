@@ -0,0 +1,500 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 GreenVulcano ESB Open Source Project.
+ * All rights reserved.
+ *
+ * This file is part of GreenVulcano ESB.
+ *
+ * GreenVulcano ESB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GreenVulcano ESB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with GreenVulcano ESB. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package it.greenvulcano.gvesb.channel.mqtt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import it.greenvulcano.gvesb.channel.mqtt.MqttChannel.ConnectionState;
+import it.greenvulcano.gvesb.channel.mqtt.MqttChannel.SubscriptionListener;
+
+/**
+ * A single broker connection of a {@link MqttChannel}.
+ * 
+ * Each connection has its own MQTT client, in-flight window and subscriptions:
+ * inbound messages are delivered only to the listeners subscribed through it,
+ * so that overlapping filters held by different connections never deliver a message twice.
+ * 
+ * When the connection is lost it is established again in background on the channel scheduler,
+ * following the {@link ReconnectPolicy}, and all its subscriptions are restored with a single request.
+ * Meanwhile publishers wait a bounded time for the connection instead of connecting on their own.
+ */
+final class ChannelConnection implements MqttCallback {
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final String endpoint;
+	private final String clientId;
+	private final MqttClientPersistence persistence;
+	/** created on start, under the state monitor */
+	private volatile MqttAsyncClient mqttClient;
+	private final MqttConnectOptions connectOptions;
+	private final Semaphore inflight;
+	/** the deliveries not completed yet, with their QoS */
+	private final Map<CompletableFuture<IMqttDeliveryToken>, Integer> pending = new ConcurrentHashMap<>();
+
+	private final ScheduledExecutorService scheduler;
+	private final ReconnectPolicy reconnectPolicy;
+	private final ChannelMetrics metrics;
+	private final Object stateMonitor = new Object();
+	private volatile ConnectionState state = ConnectionState.DISCONNECTED;
+	private long reconnectDelay;
+	private final CompletableFuture<Void> started = new CompletableFuture<>();
+
+	/** listeners mapped to the filter actually subscribed on the broker, guarded by the connection monitor */
+	private final Map<SubscriptionListener, String> subscriptions = new LinkedHashMap<>();
+	/** immutable snapshot of the subscriptions, replaced on each change: message delivery reads it without locking */
+	private volatile TopicTrie<SubscriptionListener> router = TopicTrie.empty();
+	/** completes the pending requests of the channel, ahead of the listeners */
+	private volatile ReplyDispatcher replies;
+
+	/**
+	 * The MQTT client, that opens and restores the persistence, is created only when the connection is started:
+	 * a channel being rebuilt on reload must not read the persistence of its client id while the running one still writes it
+	 * 
+	 * @param scheduler runs the reconnection attempts
+	 * @param metrics collects the traffic of the connection along with the others of the channel
+	 * @throws IllegalArgumentException if the endpoint is not valid
+	 */
+	ChannelConnection(String endpoint, String clientId, MqttConnectOptions connectOptions, MqttClientPersistence persistence,
+					  ScheduledExecutorService scheduler, ReconnectPolicy reconnectPolicy, ChannelMetrics metrics) throws MqttException {
+		MqttConnectOptions.validateURI(endpoint);
+		this.endpoint = endpoint;
+		this.clientId = clientId;
+		this.persistence = persistence;
+		this.connectOptions = connectOptions;
+		this.scheduler = scheduler;
+		this.reconnectPolicy = reconnectPolicy;
+		this.metrics = metrics;
+		this.reconnectDelay = reconnectPolicy.getMinDelay();
+		this.inflight = new Semaphore(connectOptions.getMaxInflight());
+	}
+
+	String getClientId() {
+		return clientId;
+	}
+
+	boolean isConnected() {
+		return state == ConnectionState.CONNECTED;
+	}
+
+	ConnectionState getState() {
+		return state;
+	}
+
+	private void setState(ConnectionState state) {
+		synchronized (stateMonitor) {
+			if (this.state != ConnectionState.CLOSED) {
+				this.state = state;
+			}
+			stateMonitor.notifyAll();
+		}
+	}
+
+	/**
+	 * Starts connecting in background: on failure the connection is retried following the {@link ReconnectPolicy}
+	 * 
+	 * @return a future completed when the connection is established for the first time
+	 */
+	CompletableFuture<Void> start() {
+		synchronized (stateMonitor) {
+			if (mqttClient == null && state != ConnectionState.CLOSED) {
+				try {
+					MqttAsyncClient client = new MqttAsyncClient(endpoint, clientId, persistence);
+					client.setCallback(this);
+					mqttClient = client;
+				} catch (MqttException | RuntimeException e) {
+					logger.error(String.format("GVESB MQTT connection %s cannot be created", clientId), e);
+					started.completeExceptionally(e);
+					return started;
+				}
+			}
+		}
+		connect();
+		return started;
+	}
+
+	void setReplies(ReplyDispatcher replies) {
+		this.replies = replies;
+	}
+
+	/**
+	 * @return the messages published and not yet acknowledged
+	 */
+	int getInFlight() {
+		return pending.size();
+	}
+
+	private void connected() {
+		if (started.isDone()) {
+			metrics.reconnects.increment();
+		}
+		synchronized (stateMonitor) {
+			reconnectDelay = reconnectPolicy.getMinDelay();
+		}
+		setState(ConnectionState.CONNECTED);
+		started.complete(null);
+	}
+
+	private void scheduleReconnect() {
+		long delay;
+		synchronized (stateMonitor) {
+			if (state == ConnectionState.CLOSED) {
+				return;
+			}
+			delay = reconnectPolicy.jitter(reconnectDelay);
+			reconnectDelay = reconnectPolicy.next(reconnectDelay);
+		}
+
+		logger.info(String.format("GVESB MQTT connection %s reconnecting in %d ms", clientId, delay));
+		try {
+			scheduler.schedule(this::connect, delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			logger.debug(String.format("GVESB MQTT connection %s reconnect discarded, channel dismissed", clientId));
+		}
+	}
+
+	private void connect() {
+		synchronized (stateMonitor) {
+			if (state != ConnectionState.DISCONNECTED) {
+				return;
+			}
+			state = ConnectionState.CONNECTING;
+		}
+
+		try {
+			mqttClient.connect(connectOptions, null, new IMqttActionListener() {
+
+				@Override
+				public void onSuccess(IMqttToken token) {
+					logger.info(String.format("GVESB MQTT connection %s established", clientId));
+					connected();
+					subscribeAll();
+				}
+
+				@Override
+				public void onFailure(IMqttToken token, Throwable exception) {
+					logger.warn(String.format("GVESB MQTT connection %s connect failed: %s", clientId, exception.getMessage()));
+					setState(ConnectionState.DISCONNECTED);
+					scheduleReconnect();
+				}
+			});
+		} catch (MqttException | RuntimeException e) {
+			logger.warn(String.format("GVESB MQTT connection %s connect failed: %s", clientId, e.getMessage()));
+			setState(ConnectionState.DISCONNECTED);
+			scheduleReconnect();
+		}
+	}
+
+	/**
+	 * Waits for the connection to be established, up to the connect wait of the {@link ReconnectPolicy}
+	 */
+	void awaitConnected() throws MqttException {
+		if (state == ConnectionState.CONNECTED) {
+			return;
+		}
+
+		long deadline = System.currentTimeMillis() + reconnectPolicy.getConnectWait();
+		synchronized (stateMonitor) {
+			while (state != ConnectionState.CONNECTED) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (state == ConnectionState.CLOSED) {
+					throw new MqttException(MqttException.REASON_CODE_CLIENT_CLOSED);
+				} else if (remaining <= 0) {
+					throw new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED);
+				}
+				try {
+					stateMonitor.wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new MqttException(MqttException.REASON_CODE_CLIENT_EXCEPTION, e);
+				}
+			}
+		}
+	}
+
+	private synchronized Map<String, Integer> subscribedTopics() {
+		return subscriptions.entrySet().stream()
+				.collect(Collectors.toMap(Map.Entry::getValue, e -> e.getKey().getQoS(), Math::max, LinkedHashMap::new));
+	}
+
+	/**
+	 * Subscribes all the filters with a single request once the connection is established
+	 */
+	private synchronized void subscribeAll() {
+		Map<String, Integer> topics = subscribedTopics();
+		if (topics.isEmpty()) {
+			return;
+		}
+
+		try {
+			mqttClient.subscribe(topics.keySet().toArray(new String[]{}), topics.values().stream().mapToInt(Integer::intValue).toArray(), null, new IMqttActionListener() {
+
+				@Override
+				public void onSuccess(IMqttToken token) {
+					logger.info(String.format("GVESB MQTT connection %s subscribed %d filters", clientId, topics.size()));
+				}
+
+				@Override
+				public void onFailure(IMqttToken token, Throwable exception) {
+					logger.error(String.format("GVESB MQTT connection %s failed to subscribe %s", clientId, topics.keySet()), exception);
+				}
+			});
+		} catch (MqttException e) {
+			logger.error(String.format("GVESB MQTT connection %s failed to subscribe %s", clientId, topics.keySet()), e);
+		}
+	}
+
+	/**
+	 * @param subscription the filter to subscribe on the broker for the listener,
+	 * 		  it can differ from the listener topic (e.g. a shared subscription);
+	 * 		  while disconnected it is only recorded, and subscribed along with the others as soon as the connection is established
+	 * @return a future completed once the broker acknowledged the subscription, or right away while disconnected
+	 */
+	CompletableFuture<Void> subscribe(SubscriptionListener listener, String subscription) {
+		int qos;
+		synchronized (this) {
+			subscriptions.put(listener, subscription);
+			router = new TopicTrie<>(subscriptions.keySet(), SubscriptionListener::getTopic);
+
+			if (!isConnected()) {
+				return CompletableFuture.completedFuture(null);
+			}
+			// only the new filter, with the highest QoS requested for it
+			qos = subscribedTopics().get(subscription);
+		}
+
+		// never wait for the token here: it is completed by the client callback thread,
+		// that may be blocked in subscribeAll waiting for this monitor
+		CompletableFuture<Void> subscribed = new CompletableFuture<>();
+		try {
+			mqttClient.subscribe(subscription, qos, null, completing(subscribed));
+		} catch (MqttException | RuntimeException e) {
+			subscribed.completeExceptionally(e);
+		}
+		return subscribed;
+	}
+
+	CompletableFuture<Void> unsubscribe(String topic) {
+		List<SubscriptionListener> unwanted;
+		synchronized (this) {
+			unwanted = subscriptions.keySet().stream()
+					.filter(l -> l.getTopic().equals(topic))
+					.collect(Collectors.toList());
+		}
+		return unsubscribe(unwanted);
+	}
+
+	CompletableFuture<Void> unsubscribe(SubscriptionListener listener) {
+		return unsubscribe(Collections.singletonList(listener));
+	}
+
+	/**
+	 * Removes the listeners, unsubscribing on the broker only the filters no other listener is still using
+	 */
+	private CompletableFuture<Void> unsubscribe(List<SubscriptionListener> unwanted) {
+		Set<String> filters;
+		synchronized (this) {
+			filters = unwanted.stream().map(subscriptions::get).filter(Objects::nonNull).collect(Collectors.toSet());
+			if (filters.isEmpty()) {
+				return CompletableFuture.completedFuture(null);
+			}
+
+			unwanted.forEach(subscriptions::remove);
+			router = new TopicTrie<>(subscriptions.keySet(), SubscriptionListener::getTopic);
+
+			filters.removeAll(subscriptions.values());
+			if (filters.isEmpty() || !isConnected()) {
+				return CompletableFuture.completedFuture(null);
+			}
+		}
+
+		CompletableFuture<Void> unsubscribed = new CompletableFuture<>();
+		try {
+			mqttClient.unsubscribe(filters.toArray(new String[]{}), null, completing(unsubscribed));
+		} catch (MqttException | RuntimeException e) {
+			unsubscribed.completeExceptionally(e);
+		}
+		return unsubscribed;
+	}
+
+	private static IMqttActionListener completing(CompletableFuture<Void> future) {
+		return new IMqttActionListener() {
+
+			@Override
+			public void onSuccess(IMqttToken token) {
+				future.complete(null);
+			}
+
+			@Override
+			public void onFailure(IMqttToken token, Throwable exception) {
+				future.completeExceptionally(exception);
+			}
+		};
+	}
+
+	/**
+	 * @see MqttChannel#publishAsync(String, byte[], int)
+	 */
+	CompletableFuture<IMqttDeliveryToken> publishAsync(String topic, byte[] payload, int qos) throws MqttException {
+		MqttMessage message = new MqttMessage(payload);
+		message.setQos(qos);
+		awaitConnected();
+
+		try {
+			inflight.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MqttException(MqttException.REASON_CODE_CLIENT_EXCEPTION, e);
+		}
+
+		CompletableFuture<IMqttDeliveryToken> delivery = new CompletableFuture<>();
+		pending.put(delivery, qos);
+		delivery.whenComplete((token, exception) -> {
+			pending.remove(delivery);
+			inflight.release();
+			if (exception != null) {
+				metrics.publishFailures.increment();
+			}
+		});
+		metrics.messagesOut.increment();
+		metrics.bytesOut.add(payload.length);
+
+		try {
+			mqttClient.publish(topic, message, null, new IMqttActionListener() {
+
+				@Override
+				public void onSuccess(IMqttToken token) {
+					delivery.complete((IMqttDeliveryToken) token);
+				}
+
+				@Override
+				public void onFailure(IMqttToken token, Throwable exception) {
+					if (isRedelivered(qos, exception)) {
+						// Paho fails the token on the connection loss, then completes it once the message is sent again
+						logger.debug(String.format("GVESB MQTT connection %s delivery on %s interrupted, waiting for the redelivery", clientId, topic));
+						return;
+					}
+					logger.warn(String.format("GVESB MQTT connection %s delivery failed on %s", clientId, topic), exception);
+					delivery.completeExceptionally(exception);
+				}
+			});
+		} catch (MqttException | RuntimeException e) {
+			delivery.completeExceptionally(e);
+			throw e;
+		}
+
+		return delivery;
+	}
+
+	/**
+	 * @return <code>true</code> if a QoS 1/2 message interrupted by a connection loss will be sent again
+	 * 		   on reconnection, from the persistence of a session that is not clean
+	 */
+	private boolean isRedelivered(int qos, Throwable exception) {
+		return qos > 0 && !connectOptions.isCleanSession() && state != ConnectionState.CLOSED
+			   && exception instanceof MqttException && ((MqttException) exception).getReasonCode() == MqttException.REASON_CODE_CONNECTION_LOST;
+	}
+
+	@Override
+	public void messageArrived(String topic, MqttMessage message) throws Exception {
+		metrics.messagesIn.increment();
+		metrics.bytesIn.add(message.getPayload().length);
+		ReplyDispatcher replies = this.replies;
+		if (replies != null && replies.accept(topic, message)) {
+			return;
+		}
+		for (SubscriptionListener listener : router.match(topic)) {
+			listener.processMessage(topic, message);
+		}
+	}
+
+	@Override
+	public void deliveryComplete(IMqttDeliveryToken token) {
+		if (logger.isDebugEnabled()) {
+			logger.debug(String.format("GVESB MQTT connection %s delivery complete for message %d", clientId, token.getMessageId()));
+		}
+	}
+
+	@Override
+	public void connectionLost(Throwable cause) {
+		logger.error(String.format("GVESB MQTT connection %s lost", clientId), cause);
+		setState(ConnectionState.DISCONNECTED);
+
+		// a clean session drops the pending deliveries, otherwise only the QoS 0 ones are lost:
+		// release their in-flight slots
+		new HashMap<>(pending).forEach((delivery, qos) -> {
+			if (connectOptions.isCleanSession() || qos == 0) {
+				delivery.completeExceptionally(cause);
+			}
+		});
+
+		synchronized (stateMonitor) {
+			reconnectDelay = reconnectPolicy.getMinDelay();
+		}
+		scheduleReconnect();
+	}
+
+	void close() throws MqttException {
+		setState(ConnectionState.CLOSED);
+		// never created once closed
+		MqttAsyncClient mqttClient = this.mqttClient;
+		if (mqttClient != null && mqttClient.isConnected()) {
+			mqttClient.disconnect().waitForCompletion();
+		}
+		synchronized (this) {
+			subscriptions.clear();
+			router = TopicTrie.empty();
+		}
+		if (mqttClient != null) {
+			mqttClient.close();
+		}
+		
+		// the deliveries left for a redelivery will never complete
+		MqttException closed = new MqttException(MqttException.REASON_CODE_CLIENT_CLOSED);
+		new ArrayList<>(pending.keySet()).forEach(delivery -> delivery.completeExceptionally(closed));
+	}
+
+}
@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 GreenVulcano ESB Open Source Project.
+ * All rights reserved.
+ *
+ * This file is part of GreenVulcano ESB.
+ *
+ * GreenVulcano ESB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GreenVulcano ESB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with GreenVulcano ESB. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package it.greenvulcano.gvesb.channel.mqtt;
+
+import java.util.concurrent.atomic.LongAdder;
+
+final class ChannelMetrics implements ChannelMetricsMBean {
+
+	private final MqttChannel channel;
+
+	final LongAdder reconnects = new LongAdder();
+	final LongAdder messagesIn = new LongAdder();
+	final LongAdder bytesIn = new LongAdder();
+	final LongAdder messagesOut = new LongAdder();
+	final LongAdder bytesOut = new LongAdder();
+	final LongAdder publishFailures = new LongAdder();
+
+	ChannelMetrics(MqttChannel channel) {
+		this.channel = channel;
+	}
+
+	@Override
+	public String getState() {
+		return channel.getState().name();
+	}
+
+	@Override
+	public long getReconnects() {
+		return reconnects.sum();
+	}
+
+	@Override
+	public long getMessagesIn() {
+		return messagesIn.sum();
+	}
+
+	@Override
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	@Override
+	public long getMessagesOut() {
+		return messagesOut.sum();
+	}
+
+	@Override
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+	@Override
+	public long getPublishFailures() {
+		return publishFailures.sum();
+	}
+
+	@Override
+	public int getInFlight() {
+		return channel.getInFlight();
+	}
+
+	@Override
+	public int getPendingRequests() {
+		return channel.getPendingRequests();
+	}
+
+}
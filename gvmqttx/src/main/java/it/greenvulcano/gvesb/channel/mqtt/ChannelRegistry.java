@@ -0,0 +1,65 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 GreenVulcano ESB Open Source Project.
+ * All rights reserved.
+ *
+ * This file is part of GreenVulcano ESB.
+ *
+ * GreenVulcano ESB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GreenVulcano ESB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with GreenVulcano ESB. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package it.greenvulcano.gvesb.channel.mqtt;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Running channels indexed by system and channel id: lookups never lock
+ * and are not affected by the number of channels.
+ */
+final class ChannelRegistry implements MqttChannelRegistry {
+
+	private final ConcurrentMap<String, MqttChannel> channels = new ConcurrentHashMap<>();
+
+	private static String key(String system, String channel) {
+		return system + "/" + channel;
+	}
+
+	@Override
+	public Optional<MqttChannel> lookup(String system, String channel) {
+		return Optional.ofNullable(channels.get(key(system, channel)));
+	}
+
+	@Override
+	public Collection<MqttChannel> getChannels() {
+		return Collections.unmodifiableCollection(channels.values());
+	}
+
+	/**
+	 * @return the channel previously registered with the same system and id, if any
+	 */
+	Optional<MqttChannel> register(MqttChannel channel) {
+		return Optional.ofNullable(channels.put(key(channel.getSystem(), channel.getId()), channel));
+	}
+
+	void unregister(MqttChannel channel) {
+		channels.remove(key(channel.getSystem(), channel.getId()), channel);
+	}
+
+	void clear() {
+		channels.clear();
+	}
+
+}
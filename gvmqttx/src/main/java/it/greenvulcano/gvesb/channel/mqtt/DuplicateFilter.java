@@ -0,0 +1,140 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 GreenVulcano ESB Open Source Project.
+ * All rights reserved.
+ *
+ * This file is part of GreenVulcano ESB.
+ *
+ * GreenVulcano ESB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GreenVulcano ESB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with GreenVulcano ESB. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package it.greenvulcano.gvesb.channel.mqtt;
+
+/**
+ * Time-windowed set of message identities, used to suppress the messages delivered more than once.
+ * 
+ * Identities are 64 bit hashes kept in a primitive open-addressing table with linear probing,
+ * so the heap used does not depend on the traffic: at most <code>capacity</code> identities are retained,
+ * each for <code>windowMillis</code> after it was first seen. When the table is full the oldest identity is evicted.
+ */
+final class DuplicateFilter {
+
+	private final int capacity;
+	private final long windowMillis;
+	private final int mask;
+	private final long[] keys;
+	/** time each key was first seen, 0 for an empty slot */
+	private final long[] times;
+
+	/** the keys in insertion order, to evict the oldest ones */
+	private final long[] ring;
+	private int head, size;
+
+	DuplicateFilter(int capacity, long windowMillis) {
+		if (capacity <= 0 || capacity > 1 << 29) {
+			throw new IllegalArgumentException("Invalid duplicate filter capacity: " + capacity);
+		}
+		this.capacity = capacity;
+		this.windowMillis = windowMillis;
+
+		int slots = Integer.highestOneBit(capacity * 2 - 1) << 1;
+		this.mask = slots - 1;
+		this.keys = new long[slots];
+		this.times = new long[slots];
+		this.ring = new long[capacity];
+	}
+
+	/**
+	 * Records an identity
+	 * 
+	 * @return <code>true</code> if the identity was already seen within the window
+	 */
+	synchronized boolean isDuplicate(long key) {
+		long now = Math.max(1, System.currentTimeMillis());
+		expire(now);
+
+		if (find(key) >= 0) {
+			return true;
+		}
+
+		if (size == capacity) {
+			evictOldest();
+		}
+		insert(key, now);
+		return false;
+	}
+
+	synchronized int size() {
+		return size;
+	}
+
+	private void expire(long now) {
+		while (size > 0) {
+			int slot = find(ring[head]);
+			if (now - times[slot] <= windowMillis) {
+				break;
+			}
+			evictOldest();
+		}
+	}
+
+	private void evictOldest() {
+		remove(find(ring[head]));
+		head = (head + 1) % capacity;
+		size--;
+	}
+
+	private int home(long key) {
+		return (int) (key ^ (key >>> 32)) & mask;
+	}
+
+	private int find(long key) {
+		for (int slot = home(key); times[slot] != 0; slot = (slot + 1) & mask) {
+			if (keys[slot] == key) {
+				return slot;
+			}
+		}
+		return -1;
+	}
+
+	private void insert(long key, long now) {
+		int slot = home(key);
+		while (times[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		keys[slot] = key;
+		times[slot] = now;
+
+		ring[(head + size) % capacity] = key;
+		size++;
+	}
+
+	/**
+	 * Empties a slot shifting back the following entries of the probe sequence, so that no tombstones are needed
+	 */
+	private void remove(int slot) {
+		int free = slot;
+		times[free] = 0;
+		for (int next = (free + 1) & mask; times[next] != 0; next = (next + 1) & mask) {
+			int home = home(keys[next]);
+			// the entry can fill the free slot only if its home is not cyclically between the free slot and itself
+			boolean reachable = free <= next ? (home <= free || home > next) : (home <= free && home > next);
+			if (reachable) {
+				keys[free] = keys[next];
+				times[free] = times[next];
+				times[next] = 0;
+				free = next;
+			}
+		}
+	}
+
+}
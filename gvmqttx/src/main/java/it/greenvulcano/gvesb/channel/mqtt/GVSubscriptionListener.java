@@ -19,12 +19,22 @@
  *******************************************************************************/
 package it.greenvulcano.gvesb.channel.mqtt;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
 
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.slf4j.Logger;
 
 import it.greenvulcano.gvesb.buffer.GVBuffer;
+import it.greenvulcano.gvesb.buffer.GVException;
 import it.greenvulcano.gvesb.channel.mqtt.MqttChannel;
 import it.greenvulcano.gvesb.core.GreenVulcano;
 import it.greenvulcano.gvesb.core.exc.GVCoreException;
@@ -33,19 +43,55 @@ import it.greenvulcano.gvesb.core.pool.GreenVulcanoPoolManager;
 import it.greenvulcano.gvesb.log.GVBufferMDC;
 
 public class GVSubscriptionListener implements MqttChannel.SubscriptionListener {
+	/** distinguishes the metrics of listeners with the same configuration, e.g. on a channel being rebuilt */
+	private static final AtomicInteger instances = new AtomicInteger();
+	
 	private transient final Logger logger = org.slf4j.LoggerFactory.getLogger(getClass());	
 	private transient final GreenVulcano greenVulcano;
-	private final String topic, system, service, operation;
+	/** runs the forwards handed to the executor, <code>null</code> without an executor */
+	private transient final GreenVulcanoPool greenVulcanoPool;
+	private final String topic, group, system, service, operation;
 	private final int qos;
+	private final ListenerExecutor executor;
+	private volatile InboundQueue inbound;
+	private volatile MessageBatcher batcher;
+	private volatile boolean decompress = true;
+	private String lane;
+	private volatile DuplicateFilter duplicateFilter;
+	private volatile MessageIdentity identity;
+	private final LongAdder duplicates = new LongAdder();
+	private final ListenerMetrics metrics;
+	private final ObjectName metricsName;
 		
 	public GVSubscriptionListener(String topic, int qos, String system, String service, String operation) throws GVCoreException {
+		this(topic, null, qos, system, null, service, operation, null);
+	}
+	
+	/**
+	 * @param group the consumer group sharing the subscription among nodes, or <code>null</code> for a plain subscription
+	 * @param channel the id of the channel the listener subscribes on, naming its metrics
+	 * @param executor the pool running the forwards, or <code>null</code> to forward on the MQTT client callback thread
+	 */
+	GVSubscriptionListener(String topic, String group, int qos, String system, String channel, String service, String operation, ListenerExecutor executor) throws GVCoreException {
 		this.topic = Objects.requireNonNull(topic);
+		this.group = group;
 		this.qos = qos;
 		this.system = Objects.requireNonNull(system);
 		this.service = Objects.requireNonNull(service);
 		this.operation = Objects.requireNonNull(operation);
+		this.executor = executor;
 		logger.debug(String.format("Creating channel listener for %s/%s/%s on %s (%s)",system, service, operation, topic, qos));
 		this.greenVulcano = new GreenVulcano();
+		this.greenVulcanoPool = executor != null
+				? GreenVulcanoPoolManager.instance().getGreenVulcanoPool("gvmqtt").orElseGet(GreenVulcanoPoolManager::getDefaultGreenVulcanoPool)
+				: null;
+		this.metrics = new ListenerMetrics(this);
+		this.metricsName = MetricsRegistry.register(metrics, ListenerMetricsMBean.class, "Listener",
+													"system", system, "channel", channel, "service", service, "operation", operation, "topic", topic,
+													"instance", String.valueOf(instances.incrementAndGet()));
+		if (metricsName == null) {
+			logger.warn(String.format("GVESB MQTT listener %s/%s/%s on %s has no metrics", system, service, operation, topic));
+		}
 	}
 		
 	public String getSystem() {
@@ -60,11 +106,102 @@ public class GVSubscriptionListener implements MqttChannel.SubscriptionListener
 		return operation;
 	}
 
+	/**
+	 * Buffers the arriving messages in a bounded queue, releasing the MQTT client callback thread
+	 * as soon as each message is queued; must be enabled before the listener is registered
+	 * 
+	 * @param spillDirectory where messages are spilled with the {@link InboundQueue.Overflow#SPILL} policy
+	 */
+	void enableInboundQueue(int maxMessages, long maxBytes, InboundQueue.Overflow overflow, Path spillDirectory) throws IOException {
+		inbound = new InboundQueue(String.format("gvmqtt-%s/%s/%s", system, service, operation), maxMessages, maxBytes, overflow, spillDirectory, this::dispatch);
+	}
+	
+	/**
+	 * Forwards the messages in batches: each forward receives the list of the payloads;
+	 * must be enabled before the listener is registered
+	 * 
+	 * @param lingerMillis how long a batch waits for more messages once started
+	 */
+	void enableBatching(int batchSize, long lingerMillis) {
+		batcher = new MessageBatcher(String.format("gvmqtt-%s/%s/%s", system, service, operation), batchSize, lingerMillis, this::forwardBatch);
+	}
+	
+	/**
+	 * Discards the messages whose identity was already seen within the window, before they are queued or forwarded
+	 * 
+	 * @param capacity the maximum number of identities retained
+	 */
+	void enableDeduplication(MessageIdentity identity, int capacity, long windowMillis) {
+		this.identity = identity;
+		this.duplicateFilter = new DuplicateFilter(capacity, windowMillis);
+	}
+	
+	/**
+	 * @return the messages discarded as duplicates
+	 */
+	public long getDuplicateCount() {
+		return duplicates.sum();
+	}
+	
+	/**
+	 * @param decompress if <code>true</code> (the default) payloads compressed by a {@link PayloadCodec} are decompressed
+	 * 		  before being forwarded
+	 */
+	void setDecompress(boolean decompress) {
+		this.decompress = decompress;
+	}
+	
+	private byte[] payloadOf(MqttMessage message) {
+		return decompress ? PayloadCodecs.decode(message.getPayload()) : message.getPayload();
+	}
+	
+	/**
+	 * @return the messages discarded by the inbound queue overflow policy
+	 */
+	public long getDroppedCount() {
+		return inbound != null ? inbound.getDropped() : 0;
+	}
+	
+	/**
+	 * @return the messages spilled to disk by the inbound queue
+	 */
+	public long getSpilledCount() {
+		return inbound != null ? inbound.getSpilled() : 0;
+	}
+	
+	/**
+	 * @return the messages waiting in the inbound queue
+	 */
+	public int getQueuedCount() {
+		return inbound != null ? inbound.size() : 0;
+	}
+	
+	public ListenerMetricsMBean getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * @param lane the priority lane the forwards are queued on, through the executor given to the listener
+	 */
+	void setLane(String lane) {
+		this.lane = lane;
+	}
+	
+	@Override
+	public String getLane() {
+		return lane;
+	}
+	
 	@Override
 	public String getTopic() {		
 		return topic;
 	}
 	
+	@Override
+	public String getGroup() {
+		return group;
+	}
+	
 	@Override
 	public Integer getQoS() {
 		return qos;
@@ -72,62 +209,147 @@ public class GVSubscriptionListener implements MqttChannel.SubscriptionListener
 	
 	@Override
 	public void stop() {
+		if (inbound != null) {
+			inbound.stop();
+		}
+		if (batcher != null) {
+			batcher.stop();
+		}
+		if (executor != null) {
+			executor.shutdown();
+		}
 		greenVulcano.destroy(false);
-		
+		MetricsRegistry.unregister(metricsName);
 	}
 	
 	@Override
 	public void processMessage(String topic, MqttMessage message) {
-	    if (isOfInterest(topic)) {
+		metrics.received.increment();
+		byte[] payload = payloadOf(message);
+		DuplicateFilter duplicateFilter = this.duplicateFilter;
+		if (duplicateFilter != null && duplicateFilter.isDuplicate(identity.identify(topic, payload))) {
+			duplicates.increment();
+			if (logger.isDebugEnabled()) {
+				logger.debug("Duplicate message discarded on " + topic);
+			}
+			return;
+		}
+		
+		try {
+			if (inbound != null || batcher != null) {
+				// the queued message carries the decoded payload, so that it is not decoded again when the buffer is built
+				if (payload != message.getPayload()) {
+					message.setPayload(payload);
+				}
+				if (inbound != null) {
+					inbound.offer(topic, message);
+				} else {
+					batcher.add(topic, message);
+				}
+			} else {
+				forward(topic, () -> buildGVBuffer(topic, message, payload));
+			}
+		} catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			logger.error("Interrupted dispatching message on " + topic, exc);
+		}
+	}
+	
+	private void dispatch(String topic, MqttMessage message) throws InterruptedException {
+		if (batcher != null) {
+			batcher.add(topic, message);
+		} else {
+			forward(topic, () -> buildGVBuffer(topic, message, message.getPayload()));
+		}
+	}
+	
+	/**
+	 * Forwards a batch keyed by the listener filter, so that ordered executors keep the batches in sequence
+	 */
+	private void forwardBatch(List<MessageBatcher.Message> batch) throws InterruptedException {
+		forward(getTopic(), () -> buildGVBuffer(batch));
+	}
+	
+	private void forward(String topic, Callable<GVBuffer> input) throws InterruptedException {
+		if (executor != null) {
 			try {
-	        	
-	            GVBuffer in = new GVBuffer(getSystem(), getService());
-	            in.setObject(message.getPayload());
-	            //in.setProperty("MQTT_SUBSCRIBER", subscriber);
-	            in.setProperty("MQTT_TOPIC", topic);
-	            in.setProperty("MQTT_QOS", String.valueOf(message.getQos()));
-	            in.setProperty("MQTT_IS_DUPLICATE", message.isDuplicate() ? "Y" : "N");
-	            in.setProperty("MQTT_IS_RETAINED", message.isRetained() ? "Y" : "N");
-	
-	            GVBufferMDC.put(in);
-	            logger.debug("BEGIN Operation");	            
-	            greenVulcano.forward(in, getOperation());	           
-	            logger.debug("END Operation");
-	        }  catch (Exception exc) {
-	            logger.error("Error processing message", exc);
-	        }
-	    }
+				executor.execute(topic, new GreenVulcanoTask(input));
+			} catch (RuntimeException exc) {
+				metrics.errors.increment();
+				logger.error("Error dispatching message", exc);
+			}
+			return;
+		}
+		
+		try {
+			GVBuffer in = input.call();
+
+			GVBufferMDC.put(in);
+			logger.debug("BEGIN Operation");
+			long start = System.nanoTime();
+			greenVulcano.forward(in, getOperation());
+			metrics.forwardLatency.record(System.nanoTime() - start);
+			logger.debug("END Operation");
+		} catch (Exception exc) {
+			metrics.errors.increment();
+			logger.error("Error processing message", exc);
+		}
+	}
+	
+	private GVBuffer buildGVBuffer(String topic, MqttMessage message, byte[] payload) throws GVException {
+		GVBuffer in = new GVBuffer(getSystem(), getService());
+		in.setObject(payload);
+		//in.setProperty("MQTT_SUBSCRIBER", subscriber);
+		in.setProperty("MQTT_TOPIC", topic);
+		in.setProperty("MQTT_QOS", String.valueOf(message.getQos()));
+		in.setProperty("MQTT_IS_DUPLICATE", message.isDuplicate() ? "Y" : "N");
+		in.setProperty("MQTT_IS_RETAINED", message.isRetained() ? "Y" : "N");
+		return in;
+	}
+	
+	/**
+	 * Builds a single buffer whose object is the list of the payloads,
+	 * with the metadata of each message in properties suffixed by its index (e.g. <code>MQTT_TOPIC_0</code>)
+	 */
+	private GVBuffer buildGVBuffer(List<MessageBatcher.Message> batch) throws GVException {
+		GVBuffer in = new GVBuffer(getSystem(), getService());
+		List<byte[]> payloads = new ArrayList<>(batch.size());
+		in.setProperty("MQTT_BATCH_SIZE", String.valueOf(batch.size()));
+		for (int i = 0; i < batch.size(); i++) {
+			MqttMessage message = batch.get(i).message;
+			payloads.add(message.getPayload());
+			in.setProperty("MQTT_TOPIC_" + i, batch.get(i).topic);
+			in.setProperty("MQTT_QOS_" + i, String.valueOf(message.getQos()));
+			in.setProperty("MQTT_IS_DUPLICATE_" + i, message.isDuplicate() ? "Y" : "N");
+			in.setProperty("MQTT_IS_RETAINED_" + i, message.isRetained() ? "Y" : "N");
+		}
+		in.setObject(payloads);
+		return in;
 	}
 	
 	class GreenVulcanoTask implements Runnable {
 
-		private final GreenVulcanoPool greenVulcano;
-		private final MqttMessage message;
+		private final Callable<GVBuffer> input;
 		
-		GreenVulcanoTask(MqttMessage message) throws GVCoreException{
-			this.greenVulcano = GreenVulcanoPoolManager.instance().getGreenVulcanoPool("gvmqtt").orElseGet(GreenVulcanoPoolManager::getDefaultGreenVulcanoPool);
-			this.message = message;
+		GreenVulcanoTask(Callable<GVBuffer> input) {
+			this.input = input;
 		}
 		
 		@Override
 		public void run() {
 			try {
-	        	
-	            GVBuffer in = new GVBuffer(getSystem(), getService());
-	            in.setObject(message.getPayload());
-	            //in.setProperty("MQTT_SUBSCRIBER", subscriber);
-	            in.setProperty("MQTT_TOPIC", getTopic());
-	            in.setProperty("MQTT_QOS", String.valueOf(message.getQos()));
-	            in.setProperty("MQTT_IS_DUPLICATE", message.isDuplicate() ? "Y" : "N");
-	            in.setProperty("MQTT_IS_RETAINED", message.isRetained() ? "Y" : "N");
+				GVBuffer in = input.call();
 
-	            GVBufferMDC.put(in);
-	            logger.debug("BEGIN Operation");	            
-	            greenVulcano.forward(in, getOperation());	           
-	            logger.debug("END Operation");
-	        }  catch (Exception exc) {
-	            logger.error("Error processing message", exc);
-	        }			
+				GVBufferMDC.put(in);
+				logger.debug("BEGIN Operation");
+				long start = System.nanoTime();
+				greenVulcanoPool.forward(in, getOperation());
+				metrics.forwardLatency.record(System.nanoTime() - start);
+				logger.debug("END Operation");
+			} catch (Exception exc) {
+				metrics.errors.increment();
+				logger.error("Error processing message", exc);
+			}
 		}
 		
 	}
@@ -183,10 +405,5 @@ public class GVSubscriptionListener implements MqttChannel.SubscriptionListener
 				+ service + ", operation="
 				+ operation + "]";
 	}
-	
-	private boolean isOfInterest(String topic) {
-		String pattern = this.topic.replace("+", "[^/]+").replace("/#", "(/.*|$)");		
-		return this.topic.equals(topic) || topic.matches(pattern)  ;
-	}
 
 }
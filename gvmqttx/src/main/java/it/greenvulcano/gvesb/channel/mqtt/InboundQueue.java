@@ -0,0 +1,316 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 GreenVulcano ESB Open Source Project.
+ * All rights reserved.
+ *
+ * This file is part of GreenVulcano ESB.
+ *
+ * GreenVulcano ESB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GreenVulcano ESB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with GreenVulcano ESB. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package it.greenvulcano.gvesb.channel.mqtt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded buffer between the MQTT client callback thread and the forwards of a {@link GVSubscriptionListener}.
+ * 
+ * The capacity is bounded both in messages and in bytes (topic and payload); when it is exceeded
+ * the {@link Overflow} policy applies. Messages are handed to the consumer in arrival order by a single thread.
+ * 
+ * The client acknowledges a QoS 1/2 message when the callback returns, that is only after the message
+ * has been accepted by the queue (or discarded by the policy).
+ */
+final class InboundQueue {
+
+	enum Overflow {
+		/** the callback thread waits for free space, pushing back on the broker through TCP flow control */
+		BLOCK,
+		/** the oldest queued message is discarded */
+		DROP_OLDEST,
+		/** the arriving message is discarded */
+		DROP_NEWEST,
+		/** the arriving message is stored on disk, and forwarded after the ones already queued */
+		SPILL
+	}
+
+	interface Consumer {
+		void accept(String topic, MqttMessage message) throws InterruptedException;
+	}
+
+	private static final int SPILL_SEGMENT_SIZE = 16 * 1024 * 1024;
+	private static final int SPILL_BATCH_SIZE = 100;
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final String name;
+	private final int maxMessages;
+	private final long maxBytes;
+	private final Overflow overflow;
+	private final Consumer consumer;
+	private final SegmentJournal spill;
+	private final Thread drainer;
+
+	private final Deque<Entry> queue = new ArrayDeque<>();
+	private long bytes;
+
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder spilled = new LongAdder();
+
+	private volatile boolean running = true;
+
+	/**
+	 * @param spillDirectory where the messages are spilled with the {@link Overflow#SPILL} policy, ignored otherwise;
+	 * 		  spilled messages not forwarded yet are recovered when the same directory is reopened
+	 */
+	InboundQueue(String name, int maxMessages, long maxBytes, Overflow overflow, Path spillDirectory, Consumer consumer) throws IOException {
+		this.name = name;
+		this.maxMessages = Math.max(1, maxMessages);
+		this.maxBytes = maxBytes;
+		this.overflow = overflow;
+		this.consumer = consumer;
+		this.spill = overflow == Overflow.SPILL ? new SegmentJournal(spillDirectory, SPILL_SEGMENT_SIZE) : null;
+
+		if (spill != null && !spill.isEmpty()) {
+			logger.info(String.format("GVESB MQTT inbound queue %s recovered %d spilled messages", name, spill.size()));
+		}
+
+		drainer = new Thread(this::drain, name + "-inbound");
+		drainer.setDaemon(true);
+		drainer.start();
+	}
+
+	/**
+	 * Queues a message, applying the overflow policy when the queue is full.
+	 * Once the queue is stopped the messages are dropped.
+	 */
+	void offer(String topic, MqttMessage message) throws InterruptedException {
+		int size = utf8Length(topic) + message.getPayload().length;
+		synchronized (this) {
+			if (!running) {
+				discard(topic);
+				return;
+			}
+
+			// once spilling, new messages follow the spilled ones to keep the arrival order
+			if (spill != null && !spill.isEmpty()) {
+				spill(topic, message);
+				return;
+			}
+
+			while (running && isFull(size)) {
+				switch (overflow) {
+					case BLOCK:
+						wait();
+						break;
+					case DROP_OLDEST:
+						Entry oldest = queue.poll();
+						bytes -= oldest.size;
+						discard(oldest.topic);
+						break;
+					case DROP_NEWEST:
+						discard(topic);
+						return;
+					default:
+						spill(topic, message);
+						return;
+				}
+			}
+			// stopped while blocked waiting for room
+			if (!running) {
+				discard(topic);
+				return;
+			}
+
+			queue.add(new Entry(topic, message, size));
+			bytes += size;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * @return the length of the UTF-8 encoding of the topic, as carried by the MQTT packet, without encoding it
+	 */
+	static int utf8Length(String topic) {
+		int length = topic.length();
+		for (int i = 0; i < topic.length(); i++) {
+			char c = topic.charAt(i);
+			if (c >= 0x800) {
+				// three bytes, or four for a surrogate pair counted here on its two chars
+				length += 2 - (Character.isSurrogate(c) ? 1 : 0);
+			} else if (c >= 0x80) {
+				length++;
+			}
+		}
+		return length;
+	}
+
+	private boolean isFull(int size) {
+		return !queue.isEmpty() && (queue.size() >= maxMessages || bytes + size > maxBytes);
+	}
+
+	private void discard(String topic) {
+		dropped.increment();
+		if (logger.isDebugEnabled()) {
+			logger.debug(String.format("GVESB MQTT inbound queue %s %s: message on %s dropped", name, running ? "full" : "stopped", topic));
+		}
+	}
+
+	private void spill(String topic, MqttMessage message) {
+		byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+		byte[] record = ByteBuffer.allocate(1 + 1 + 4 + topicBytes.length + message.getPayload().length)
+								  .put((byte) message.getQos())
+								  .put((byte) ((message.isDuplicate() ? 1 : 0) | (message.isRetained() ? 2 : 0)))
+								  .putInt(topicBytes.length)
+								  .put(topicBytes)
+								  .put(message.getPayload())
+								  .array();
+		try {
+			spill.append(record);
+			spilled.increment();
+			notifyAll();
+		} catch (IOException e) {
+			logger.error(String.format("GVESB MQTT inbound queue %s spill failed: message on %s dropped", name, topic), e);
+			dropped.increment();
+		}
+	}
+
+	private void drain() {
+		while (running) {
+			try {
+				Entry entry;
+				SegmentJournal.Batch batch = null;
+				synchronized (this) {
+					while (running && queue.isEmpty() && (spill == null || spill.isEmpty())) {
+						wait();
+					}
+					entry = queue.poll();
+					if (entry != null) {
+						bytes -= entry.size;
+						notifyAll();
+					} else if (running) {
+						batch = spill.peek(SPILL_BATCH_SIZE);
+					}
+				}
+
+				if (entry != null) {
+					consume(entry.topic, entry.message);
+				} else if (batch != null) {
+					forwardSpilled(batch);
+				}
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+	}
+
+	private void forwardSpilled(SegmentJournal.Batch batch) throws InterruptedException {
+		int forwarded = 0;
+		try {
+			for (byte[] record : batch.records) {
+				ByteBuffer buffer = ByteBuffer.wrap(record);
+				int qos = buffer.get();
+				int flags = buffer.get();
+				byte[] topic = new byte[buffer.getInt()];
+				buffer.get(topic);
+				byte[] payload = new byte[buffer.remaining()];
+				buffer.get(payload);
+
+				consume(new String(topic, StandardCharsets.UTF_8), new SpilledMessage(payload, qos, (flags & 1) != 0, (flags & 2) != 0));
+				forwarded++;
+			}
+		} finally {
+			synchronized (this) {
+				spill.commit(batch, forwarded);
+			}
+		}
+	}
+
+	private void consume(String topic, MqttMessage message) throws InterruptedException {
+		try {
+			consumer.accept(topic, message);
+		} catch (RuntimeException e) {
+			logger.error(String.format("GVESB MQTT inbound queue %s error forwarding message on %s", name, topic), e);
+		}
+	}
+
+	synchronized int size() {
+		return queue.size() + (spill != null ? (int) Math.min(Integer.MAX_VALUE, spill.size()) : 0);
+	}
+
+	long getDropped() {
+		return dropped.sum();
+	}
+
+	long getSpilled() {
+		return spilled.sum();
+	}
+
+	/**
+	 * Stops forwarding: queued messages are discarded, spilled ones are kept on disk
+	 */
+	void stop() {
+		running = false;
+		drainer.interrupt();
+		try {
+			drainer.join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			if (!queue.isEmpty()) {
+				logger.warn(String.format("GVESB MQTT inbound queue %s stopped, %d queued messages discarded", name, queue.size()));
+			}
+			queue.clear();
+			bytes = 0;
+			notifyAll();
+			if (spill != null) {
+				spill.close();
+			}
+		}
+	}
+
+	private static final class Entry {
+		private final String topic;
+		private final MqttMessage message;
+		private final int size;
+
+		Entry(String topic, MqttMessage message, int size) {
+			this.topic = topic;
+			this.message = message;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * A message read back from the spill journal, with the flags it was received with
+	 */
+	private static final class SpilledMessage extends MqttMessage {
+		SpilledMessage(byte[] payload, int qos, boolean duplicate, boolean retained) {
+			super(payload);
+			setQos(qos);
+			setRetained(retained);
+			setDuplicate(duplicate);
+		}
+	}
+
+}
@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 GreenVulcano ESB Open Source Project.
+ * All rights reserved.
+ *
+ * This file is part of GreenVulcano ESB.
+ *
+ * GreenVulcano ESB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GreenVulcano ESB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with GreenVulcano ESB. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package it.greenvulcano.gvesb.channel.mqtt;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded worker pool running the forwards of a {@link GVSubscriptionListener}
+ * on platform threads.
+ *
+ * Tasks are spread over one or more lanes, each one backed by a bounded queue:
+ * when a lane is full {@link #execute(String, Runnable)} blocks the caller,
+ * so that a slow service slows down the delivery instead of exhausting the memory.
+ */
+final class LaneExecutor implements ListenerExecutor {
+
+	enum Ordering {
+		/** one shared lane served by all the workers: no ordering guarantee */
+		NONE,
+		/** one lane per worker selected by topic hash: messages on the same topic are processed in order */
+		TOPIC,
+		/** a single lane and a single worker: messages are processed in arrival order */
+		STRICT
+	}
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final String name;
+	private final BlockingQueue<Runnable>[] lanes;
+	private final Thread[] workers;
+
+	private volatile boolean running = true;
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	LaneExecutor(String name, Ordering ordering, int threads, int capacity) {
+		this.name = name;
+
+		int size = ordering == Ordering.STRICT ? 1 : Math.max(1, threads);
+		int laneCount = ordering == Ordering.NONE ? 1 : size;
+		int laneCapacity = Math.max(1, capacity / laneCount);
+
+		lanes = new BlockingQueue[laneCount];
+		for (int l = 0; l < laneCount; l++) {
+			lanes[l] = new ArrayBlockingQueue<>(laneCapacity);
+		}
+
+		workers = new Thread[size];
+		for (int w = 0; w < size; w++) {
+			BlockingQueue<Runnable> lane = lanes[w % laneCount];
+			workers[w] = new Thread(() -> work(lane), name + "-" + w);
+			workers[w].setDaemon(true);
+			workers[w].start();
+		}
+
+		logger.debug(String.format("GVESB MQTT executor %s started with %d workers on %d lanes (ordering %s)", name, size, laneCount, ordering));
+	}
+
+	/**
+	 * Enqueues a task on the lane selected for the topic, waiting for free space if needed
+	 */
+	@Override
+	public void execute(String topic, Runnable task) throws InterruptedException {
+		if (!running) {
+			throw new IllegalStateException("Executor " + name + " is stopped");
+		}
+		lanes[lane(topic)].put(task);
+	}
+
+	private int lane(String topic) {
+		return lanes.length == 1 ? 0 : (topic.hashCode() & Integer.MAX_VALUE) % lanes.length;
+	}
+
+	private void work(BlockingQueue<Runnable> lane) {
+		while (running) {
+			try {
+				lane.take().run();
+			} catch (InterruptedException e) {
+				break;
+			} catch (RuntimeException e) {
+				logger.error(String.format("GVESB MQTT executor %s task error", name), e);
+			}
+		}
+	}
+
+	@Override
+	public void shutdown() {
+		running = false;
+		for (Thread worker : workers) {
+			worker.interrupt();
+		}
+
+		int discarded = 0;
+		for (BlockingQueue<Runnable> lane : lanes) {
+			discarded += lane.size();
+			lane.clear();
+		}
+		if (discarded > 0) {
+			logger.warn(String.format("GVESB MQTT executor %s stopped discarding %d pending messages", name, discarded));
+		}
+	}
+
+}
@@ -0,0 +1,52 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 GreenVulcano ESB Open Source Project.
+ * All rights reserved.
+ *
+ * This file is part of GreenVulcano ESB.
+ *
+ * GreenVulcano ESB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GreenVulcano ESB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with GreenVulcano ESB. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package it.greenvulcano.gvesb.channel.mqtt;
+
+/**
+ * Metrics of a priority lane of a {@link MqttChannel}; latencies are in microseconds.
+ */
+public interface LaneMetricsMBean {
+
+	int getWeight();
+
+	/**
+	 * @return the messages waiting in the lane
+	 */
+	int getQueued();
+
+	long getExecuted();
+
+	/**
+	 * @return the messages discarded because the lane was full
+	 */
+	long getDropped();
+
+	/**
+	 * @return the mean time a message waits in the lane before a worker takes it
+	 */
+	double getQueueMeanMicros();
+
+	long getQueueP50Micros();
+
+	long getQueueP99Micros();
+
+	long getQueueMaxMicros();
+
+}
@@ -0,0 +1,150 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 GreenVulcano ESB Open Source Project.
+ * All rights reserved.
+ *
+ * This file is part of GreenVulcano ESB.
+ *
+ * GreenVulcano ESB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GreenVulcano ESB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with GreenVulcano ESB. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package it.greenvulcano.gvesb.channel.mqtt;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram in microseconds with log-linear buckets, in the style of HdrHistogram.
+ * 
+ * Values below 16 have their own bucket, larger ones fall in one of 16 buckets per power of two,
+ * so the relative error is bounded to about 6%. Recording never allocates: counts are kept in arrays
+ * striped by thread, merged only when the histogram is read.
+ */
+public final class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int MAX_EXPONENT = 40;
+	private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+	private static final int BUCKETS = SUB_BUCKETS + (MAX_EXPONENT + 1 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+	/** extra slots of each stripe */
+	private static final int SUM = BUCKETS, MAX = BUCKETS + 1;
+
+	private final AtomicLongArray[] stripes;
+	private final int stripeMask;
+
+	public LatencyHistogram() {
+		int stripeCount = Math.min(16, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1));
+		stripes = new AtomicLongArray[stripeCount];
+		for (int s = 0; s < stripeCount; s++) {
+			stripes[s] = new AtomicLongArray(BUCKETS + 2);
+		}
+		stripeMask = stripeCount - 1;
+	}
+
+	/**
+	 * @param nanos the latency in nanoseconds, e.g. the difference of two {@link System#nanoTime()}
+	 */
+	public void record(long nanos) {
+		long micros = Math.min(MAX_VALUE, Math.max(0, nanos / 1000));
+		AtomicLongArray stripe = stripes[(int) Thread.currentThread().getId() & stripeMask];
+		stripe.incrementAndGet(index(micros));
+		stripe.addAndGet(SUM, micros);
+
+		long max;
+		while ((max = stripe.get(MAX)) < micros && !stripe.compareAndSet(MAX, max, micros));
+	}
+
+	static int index(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) - SUB_BUCKETS;
+		return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * @return the highest value falling in the bucket
+	 */
+	static long upperBound(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+		long lower = (long) (SUB_BUCKETS + (index - SUB_BUCKETS) % SUB_BUCKETS) << shift;
+		return lower + (1L << shift) - 1;
+	}
+
+	private long[] merge() {
+		long[] counts = new long[BUCKETS + 2];
+		for (AtomicLongArray stripe : stripes) {
+			for (int i = 0; i < BUCKETS + 1; i++) {
+				counts[i] += stripe.get(i);
+			}
+			counts[MAX] = Math.max(counts[MAX], stripe.get(MAX));
+		}
+		return counts;
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (AtomicLongArray stripe : stripes) {
+			for (int i = 0; i < BUCKETS; i++) {
+				count += stripe.get(i);
+			}
+		}
+		return count;
+	}
+
+	public double getMean() {
+		long[] counts = merge();
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			count += counts[i];
+		}
+		return count > 0 ? (double) counts[SUM] / count : 0;
+	}
+
+	public long getMax() {
+		long max = 0;
+		for (AtomicLongArray stripe : stripes) {
+			max = Math.max(max, stripe.get(MAX));
+		}
+		return max;
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return the value below which the given percentile of the recorded values falls, within the bucket precision
+	 */
+	public long getPercentile(double percentile) {
+		long[] counts = merge();
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			count += counts[i];
+		}
+		if (count == 0) {
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100));
+		long cumulative = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			cumulative += counts[i];
+			if (cumulative >= rank) {
+				return Math.min(upperBound(i), counts[MAX]);
+			}
+		}
+		return counts[MAX];
+	}
+
+}
@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 GreenVulcano ESB Open Source Project.
+ * All rights reserved.
+ *
+ * This file is part of GreenVulcano ESB.
+ *
+ * GreenVulcano ESB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GreenVulcano ESB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with GreenVulcano ESB. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package it.greenvulcano.gvesb.channel.mqtt;
+
+import java.util.concurrent.atomic.LongAdder;
+
+final class ListenerMetrics implements ListenerMetricsMBean {
+
+	private final GVSubscriptionListener listener;
+
+	final LongAdder received = new LongAdder();
+	final LongAdder errors = new LongAdder();
+	final LatencyHistogram forwardLatency = new LatencyHistogram();
+
+	ListenerMetrics(GVSubscriptionListener listener) {
+		this.listener = listener;
+	}
+
+	@Override
+	public long getReceived() {
+		return received.sum();
+	}
+
+	@Override
+	public long getDuplicates() {
+		return listener.getDuplicateCount();
+	}
+
+	@Override
+	public long getDropped() {
+		return listener.getDroppedCount();
+	}
+
+	@Override
+	public long getSpilled() {
+		return listener.getSpilledCount();
+	}
+
+	@Override
+	public int getQueued() {
+		return listener.getQueuedCount();
+	}
+
+	@Override
+	public long getForwarded() {
+		return forwardLatency.getCount();
+	}
+
+	@Override
+	public long getErrors() {
+		return errors.sum();
+	}
+
+	@Override
+	public double getForwardMeanMicros() {
+		return forwardLatency.getMean();
+	}
+
+	@Override
+	public long getForwardP50Micros() {
+		return forwardLatency.getPercentile(50);
+	}
+
+	@Override
+	public long getForwardP99Micros() {
+		return forwardLatency.getPercentile(99);
+	}
+
+	@Override
+	public long getForwardMaxMicros() {
+		return forwardLatency.getMax();
+	}
+
+}
@@ -0,0 +1,340 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 GreenVulcano ESB Open Source Project.
+ * All rights reserved.
+ *
+ * This file is part of GreenVulcano ESB.
+ *
+ * GreenVulcano ESB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GreenVulcano ESB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with GreenVulcano ESB. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package it.greenvulcano.gvesb.channel.mqtt;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link MqttClientPersistence} storing the QoS 1/2 in-flight state in a memory-mapped append-only log,
+ * instead of one file per message as <code>MqttDefaultFilePersistence</code> does.
+ * 
+ * Every put or remove appends a checksummed record to the mapped segment, while the live entries are
+ * also kept in memory to serve reads. When the segment is full it is compacted: the live entries are
+ * written to a new segment that atomically replaces the old one. On open the log is replayed up to the
+ * last valid record, so the state survives a crash of the process, and then compacted.
+ * Paho clears the persistence on every connect with a clean session: the recovered state is
+ * redelivered only by channels connecting with <code>clean-session="false"</code>.
+ */
+final class MappedSegmentPersistence implements MqttClientPersistence {
+
+	static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+	private static final int MAGIC = 0x4756514C;
+	private static final byte PUT = 1, REMOVE = 2;
+	/** magic, type, key length, header length, payload length, crc */
+	private static final int RECORD_OVERHEAD = 4 + 1 + 4 + 4 + 4 + 8;
+
+	private static final String LOG_SUFFIX = ".log";
+	private static final String COMPACT_SUFFIX = ".compact";
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final Path directory;
+	private final int segmentSize;
+	private final Map<String, MqttPersistable> entries = new LinkedHashMap<>();
+
+	private Path file;
+	private MappedByteBuffer segment;
+	private long liveBytes;
+
+	MappedSegmentPersistence(Path directory, int segmentSize) {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+	}
+
+	@Override
+	public synchronized void open(String clientId, String serverURI) throws MqttPersistenceException {
+		try {
+			Files.createDirectories(directory);
+			String name = (clientId + "-" + serverURI).replaceAll("[^A-Za-z0-9._-]", "_");
+			file = directory.resolve(name + LOG_SUFFIX);
+			Files.deleteIfExists(directory.resolve(name + LOG_SUFFIX + COMPACT_SUFFIX));
+
+			entries.clear();
+			liveBytes = 0;
+			if (Files.exists(file)) {
+				recover();
+			}
+			compact(0);
+		} catch (IOException e) {
+			throw new MqttPersistenceException(MqttPersistenceException.REASON_CODE_CLIENT_EXCEPTION, e);
+		}
+	}
+
+	private void recover() throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			MappedByteBuffer log = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			int recovered = 0;
+			try {
+				while (log.remaining() >= RECORD_OVERHEAD && log.getInt(log.position()) == MAGIC) {
+					int start = log.position();
+					log.position(start + 4);
+					byte type = log.get();
+					byte[] key = read(log);
+					byte[] header = read(log);
+					byte[] payload = read(log);
+					int end = log.position();
+					long crc = log.getLong();
+					if (crc != checksum(log, start, end)) {
+						break;
+					}
+
+					String entryKey = new String(key, StandardCharsets.UTF_8);
+					if (type == PUT) {
+						entries.put(entryKey, new Entry(header, payload));
+					} else {
+						entries.remove(entryKey);
+					}
+					recovered++;
+				}
+			} catch (BufferUnderflowException | IllegalArgumentException e) {
+				// torn or garbage record at the end of the log
+			}
+			logger.debug(String.format("GVESB MQTT persistence %s recovered %d records, %d entries live", file, recovered, entries.size()));
+		}
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the length read is not consistent with the log, before allocating anything
+	 */
+	private static byte[] read(MappedByteBuffer log) {
+		int length = log.getInt();
+		if (length < 0 || length > log.remaining()) {
+			throw new IllegalArgumentException("Invalid record length " + length);
+		}
+		byte[] data = new byte[length];
+		log.get(data);
+		return data;
+	}
+
+	private static long checksum(MappedByteBuffer log, int start, int end) {
+		ByteBuffer range = log.duplicate();
+		range.limit(end);
+		range.position(start);
+		CRC32 crc = new CRC32();
+		crc.update(range);
+		return crc.getValue();
+	}
+
+	/**
+	 * Rewrites the live entries on a new segment with at least the given free space
+	 */
+	private void compact(int required) throws IOException, MqttPersistenceException {
+		long size = segmentSize;
+		while (size < (liveBytes + required) * 2) {
+			size <<= 1;
+		}
+
+		Path compacted = file.resolveSibling(file.getFileName() + COMPACT_SUFFIX);
+		MappedByteBuffer target;
+		try (FileChannel channel = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			target = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+		for (Map.Entry<String, MqttPersistable> entry : entries.entrySet()) {
+			append(target, PUT, entry.getKey(), entry.getValue());
+		}
+		target.force();
+		Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		segment = target;
+	}
+
+	private static int append(MappedByteBuffer target, byte type, String key, MqttPersistable data) throws MqttPersistenceException {
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		int start = target.position();
+
+		target.putInt(MAGIC);
+		target.put(type);
+		target.putInt(keyBytes.length).put(keyBytes);
+		if (data != null) {
+			target.putInt(data.getHeaderLength()).put(data.getHeaderBytes(), data.getHeaderOffset(), data.getHeaderLength());
+			int payloadLength = data.getPayloadBytes() != null ? data.getPayloadLength() : 0;
+			target.putInt(payloadLength);
+			if (payloadLength > 0) {
+				target.put(data.getPayloadBytes(), data.getPayloadOffset(), payloadLength);
+			}
+		} else {
+			target.putInt(0).putInt(0);
+		}
+		target.putLong(checksum(target, start, target.position()));
+
+		return target.position() - start;
+	}
+
+	private static int recordSize(String key, MqttPersistable data) throws MqttPersistenceException {
+		int size = RECORD_OVERHEAD + key.getBytes(StandardCharsets.UTF_8).length;
+		if (data != null) {
+			size += data.getHeaderLength() + (data.getPayloadBytes() != null ? data.getPayloadLength() : 0);
+		}
+		return size;
+	}
+
+	private void write(byte type, String key, MqttPersistable data) throws MqttPersistenceException {
+		checkOpen();
+		try {
+			int size = recordSize(key, data);
+			if (segment.remaining() < size) {
+				compact(size);
+			}
+			append(segment, type, key, data);
+		} catch (IOException e) {
+			throw new MqttPersistenceException(MqttPersistenceException.REASON_CODE_CLIENT_EXCEPTION, e);
+		}
+	}
+
+	@Override
+	public synchronized void put(String key, MqttPersistable persistable) throws MqttPersistenceException {
+		byte[] header = new byte[persistable.getHeaderLength()];
+		System.arraycopy(persistable.getHeaderBytes(), persistable.getHeaderOffset(), header, 0, header.length);
+		byte[] payload = new byte[persistable.getPayloadBytes() != null ? persistable.getPayloadLength() : 0];
+		if (payload.length > 0) {
+			System.arraycopy(persistable.getPayloadBytes(), persistable.getPayloadOffset(), payload, 0, payload.length);
+		}
+		MqttPersistable copy = new Entry(header, payload);
+
+		write(PUT, key, copy);
+		MqttPersistable previous = entries.put(key, copy);
+		if (previous != null) {
+			liveBytes -= recordSize(key, previous);
+		}
+		liveBytes += recordSize(key, copy);
+	}
+
+	@Override
+	public synchronized MqttPersistable get(String key) throws MqttPersistenceException {
+		checkOpen();
+		return entries.get(key);
+	}
+
+	@Override
+	public synchronized void remove(String key) throws MqttPersistenceException {
+		checkOpen();
+		MqttPersistable removed = entries.remove(key);
+		if (removed != null) {
+			liveBytes -= recordSize(key, removed);
+			write(REMOVE, key, null);
+		}
+	}
+
+	@Override
+	public synchronized Enumeration<String> keys() throws MqttPersistenceException {
+		checkOpen();
+		return Collections.enumeration(new ArrayList<>(entries.keySet()));
+	}
+
+	@Override
+	public synchronized void clear() throws MqttPersistenceException {
+		checkOpen();
+		entries.clear();
+		liveBytes = 0;
+		try {
+			compact(0);
+		} catch (IOException e) {
+			throw new MqttPersistenceException(MqttPersistenceException.REASON_CODE_CLIENT_EXCEPTION, e);
+		}
+	}
+
+	@Override
+	public synchronized boolean containsKey(String key) throws MqttPersistenceException {
+		checkOpen();
+		return entries.containsKey(key);
+	}
+
+	@Override
+	public synchronized void close() throws MqttPersistenceException {
+		if (segment != null) {
+			segment.force();
+			segment = null;
+		}
+		entries.clear();
+	}
+
+	private void checkOpen() throws MqttPersistenceException {
+		if (segment == null) {
+			throw new MqttPersistenceException();
+		}
+	}
+
+	/**
+	 * A live entry, copied out of the caller buffers
+	 */
+	private static final class Entry implements MqttPersistable {
+
+		private final byte[] header;
+		private final byte[] payload;
+
+		Entry(byte[] header, byte[] payload) {
+			this.header = header;
+			this.payload = payload;
+		}
+
+		@Override
+		public byte[] getHeaderBytes() {
+			return header;
+		}
+
+		@Override
+		public int getHeaderLength() {
+			return header.length;
+		}
+
+		@Override
+		public int getHeaderOffset() {
+			return 0;
+		}
+
+		@Override
+		public byte[] getPayloadBytes() {
+			return payload;
+		}
+
+		@Override
+		public int getPayloadLength() {
+			return payload.length;
+		}
+
+		@Override
+		public int getPayloadOffset() {
+			return 0;
+		}
+	}
+
+}
@@ -0,0 +1,182 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 GreenVulcano ESB Open Source Project.
+ * All rights reserved.
+ *
+ * This file is part of GreenVulcano ESB.
+ *
+ * GreenVulcano ESB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GreenVulcano ESB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with GreenVulcano ESB. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package it.greenvulcano.gvesb.channel.mqtt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Aggregates the messages of a {@link GVSubscriptionListener} so that they are forwarded in batches.
+ * 
+ * A batch is flushed as soon as it reaches the configured size, or when the linger time elapsed
+ * since its first message. Flushes are serialized, so batches are handed over in arrival order;
+ * they run outside the batcher monitor, so messages keep being added to the next batch meanwhile.
+ */
+final class MessageBatcher {
+
+	interface Flush {
+		void accept(List<Message> batch) throws InterruptedException;
+	}
+
+	static final class Message {
+		final String topic;
+		final MqttMessage message;
+
+		Message(String topic, MqttMessage message) {
+			this.topic = topic;
+			this.message = message;
+		}
+	}
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final String name;
+	private final int batchSize;
+	private final long lingerMillis;
+	private final Flush flush;
+	private final ScheduledExecutorService timer;
+
+	private List<Message> batch;
+	/** the batches swapped out so far, guarded by the batcher monitor */
+	private long generation;
+	/** the batches handed over so far, guarded by <code>turn</code> */
+	private long handedOff;
+	private final Object turn = new Object();
+
+	MessageBatcher(String name, int batchSize, long lingerMillis, Flush flush) {
+		this.name = name;
+		this.batchSize = Math.max(1, batchSize);
+		this.lingerMillis = Math.max(0, lingerMillis);
+		this.flush = flush;
+		this.batch = new ArrayList<>(this.batchSize);
+		this.timer = Executors.newSingleThreadScheduledExecutor(task -> {
+			Thread thread = new Thread(task, name + "-batch");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Adds a message to the current batch; when the batch is full it is handed over by the calling thread,
+	 * after the batches swapped out before it
+	 */
+	void add(String topic, MqttMessage message) throws InterruptedException {
+		long ticket;
+		List<Message> full;
+		synchronized (this) {
+			batch.add(new Message(topic, message));
+
+			if (batch.size() < batchSize) {
+				if (batch.size() == 1) {
+					long expiring = generation;
+					try {
+						timer.schedule(() -> expire(expiring), lingerMillis, TimeUnit.MILLISECONDS);
+					} catch (RejectedExecutionException e) {
+						logger.debug(String.format("GVESB MQTT batcher %s stopped", name));
+					}
+				}
+				return;
+			}
+			ticket = generation;
+			full = swap();
+		}
+		flush(ticket, full);
+	}
+
+	private void expire(long expiring) {
+		List<Message> expired;
+		synchronized (this) {
+			// the batch the timer was started for may have been flushed already by size
+			if (expiring != generation || batch.isEmpty()) {
+				return;
+			}
+			expired = swap();
+		}
+		try {
+			flush(expiring, expired);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Replaces the current batch with an empty one, holding the batcher monitor
+	 */
+	private List<Message> swap() {
+		List<Message> swapped = batch;
+		batch = new ArrayList<>(batchSize);
+		generation++;
+		return swapped;
+	}
+
+	/**
+	 * Hands a batch over once all the batches swapped out before it are
+	 * 
+	 * @param ticket the generation of the batch
+	 */
+	private void flush(long ticket, List<Message> flushed) throws InterruptedException {
+		boolean interrupted = false;
+		synchronized (turn) {
+			// the turn must be taken anyway, or the following batches would wait forever
+			while (handedOff != ticket) {
+				try {
+					turn.wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+
+		try {
+			if (interrupted) {
+				logger.warn(String.format("GVESB MQTT batcher %s interrupted: %d messages discarded", name, flushed.size()));
+				throw new InterruptedException();
+			}
+			flush.accept(flushed);
+		} catch (RuntimeException e) {
+			logger.error(String.format("GVESB MQTT batcher %s error forwarding %d messages", name, flushed.size()), e);
+		} finally {
+			synchronized (turn) {
+				handedOff++;
+				turn.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Stops the batcher, discarding the messages not flushed yet
+	 */
+	synchronized void stop() {
+		timer.shutdownNow();
+		if (!batch.isEmpty()) {
+			logger.warn(String.format("GVESB MQTT batcher %s stopped discarding %d pending messages", name, batch.size()));
+			batch.clear();
+		}
+	}
+
+}
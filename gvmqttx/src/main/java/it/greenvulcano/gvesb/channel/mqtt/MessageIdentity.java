@@ -0,0 +1,192 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 GreenVulcano ESB Open Source Project.
+ * All rights reserved.
+ *
+ * This file is part of GreenVulcano ESB.
+ *
+ * GreenVulcano ESB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GreenVulcano ESB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with GreenVulcano ESB. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package it.greenvulcano.gvesb.channel.mqtt;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathFactory;
+
+import org.json.JSONObject;
+
+/**
+ * Extracts the 64 bit identity of a message, used by the {@link DuplicateFilter}.
+ * 
+ * The identity is configured as:
+ * <ul>
+ * <li><code>payload</code>: the hash of topic and payload</li>
+ * <li><code>json:<i>path</i></code>: the hash of a field of a JSON payload, given as a dot separated path (e.g. <code>json:header.id</code>)</li>
+ * <li><code>xpath:<i>expression</i></code>: the hash of the string value of an XPath expression on a XML payload</li>
+ * </ul>
+ * When the field cannot be read the topic and payload hash is used instead.
+ */
+abstract class MessageIdentity {
+
+	private static final long SEED = 0x9747b28cL;
+
+	static MessageIdentity of(String definition) {
+		if (definition.startsWith("json:")) {
+			return new JsonField(definition.substring("json:".length()));
+		} else if (definition.startsWith("xpath:")) {
+			return new XPathField(definition.substring("xpath:".length()));
+		} else if ("payload".equals(definition)) {
+			return new Payload();
+		}
+		throw new IllegalArgumentException("Invalid message identity: " + definition);
+	}
+
+	abstract long identify(String topic, byte[] payload);
+
+	static long hash(String topic, byte[] payload) {
+		return murmur64(payload, murmur64(topic.getBytes(StandardCharsets.UTF_8), SEED));
+	}
+
+	/**
+	 * MurmurHash64A by Austin Appleby
+	 */
+	@SuppressWarnings("fallthrough")
+	static long murmur64(byte[] data, long seed) {
+		final long m = 0xc6a4a7935bd1e995L;
+		final int r = 47;
+
+		long h = seed ^ (data.length * m);
+
+		int blocks = data.length >>> 3;
+		for (int i = 0; i < blocks; i++) {
+			int o = i << 3;
+			long k = (data[o] & 0xffL)
+					| (data[o + 1] & 0xffL) << 8
+					| (data[o + 2] & 0xffL) << 16
+					| (data[o + 3] & 0xffL) << 24
+					| (data[o + 4] & 0xffL) << 32
+					| (data[o + 5] & 0xffL) << 40
+					| (data[o + 6] & 0xffL) << 48
+					| (data[o + 7] & 0xffL) << 56;
+
+			k *= m;
+			k ^= k >>> r;
+			k *= m;
+
+			h ^= k;
+			h *= m;
+		}
+
+		int tail = blocks << 3;
+		switch (data.length & 7) {
+			case 7: h ^= (data[tail + 6] & 0xffL) << 48;
+			case 6: h ^= (data[tail + 5] & 0xffL) << 40;
+			case 5: h ^= (data[tail + 4] & 0xffL) << 32;
+			case 4: h ^= (data[tail + 3] & 0xffL) << 24;
+			case 3: h ^= (data[tail + 2] & 0xffL) << 16;
+			case 2: h ^= (data[tail + 1] & 0xffL) << 8;
+			case 1: h ^= (data[tail] & 0xffL);
+					h *= m;
+		}
+
+		h ^= h >>> r;
+		h *= m;
+		h ^= h >>> r;
+
+		return h;
+	}
+
+	private static final class Payload extends MessageIdentity {
+
+		@Override
+		long identify(String topic, byte[] payload) {
+			return hash(topic, payload);
+		}
+
+	}
+
+	private static final class JsonField extends MessageIdentity {
+
+		private final String[] path;
+
+		JsonField(String path) {
+			this.path = path.split("\\.");
+		}
+
+		@Override
+		long identify(String topic, byte[] payload) {
+			try {
+				JSONObject json = new JSONObject(new String(payload, StandardCharsets.UTF_8));
+				for (int i = 0; i < path.length - 1; i++) {
+					json = json.getJSONObject(path[i]);
+				}
+				Object value = json.get(path[path.length - 1]);
+				return murmur64(value.toString().getBytes(StandardCharsets.UTF_8), SEED);
+			} catch (RuntimeException e) {
+				return hash(topic, payload);
+			}
+		}
+
+	}
+
+	private static final class XPathField extends MessageIdentity {
+
+		private final ThreadLocal<XPathExpression> expressions;
+		private final ThreadLocal<DocumentBuilder> builders;
+
+		XPathField(String expression) {
+			try {
+				// compiled once to validate it
+				XPathFactory.newInstance().newXPath().compile(expression);
+			} catch (Exception e) {
+				throw new IllegalArgumentException("Invalid XPath message identity: " + expression, e);
+			}
+
+			expressions = ThreadLocal.withInitial(() -> {
+				try {
+					return XPathFactory.newInstance().newXPath().compile(expression);
+				} catch (Exception e) {
+					throw new IllegalStateException(e);
+				}
+			});
+			builders = ThreadLocal.withInitial(() -> {
+				try {
+					DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+					factory.setNamespaceAware(true);
+					factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+					return factory.newDocumentBuilder();
+				} catch (Exception e) {
+					throw new IllegalStateException(e);
+				}
+			});
+		}
+
+		@Override
+		long identify(String topic, byte[] payload) {
+			try {
+				DocumentBuilder builder = builders.get();
+				builder.reset();
+				String value = expressions.get().evaluate(builder.parse(new ByteArrayInputStream(payload)));
+				return value.isEmpty() ? hash(topic, payload) : murmur64(value.getBytes(StandardCharsets.UTF_8), SEED);
+			} catch (Exception e) {
+				return hash(topic, payload);
+			}
+		}
+
+	}
+
+}
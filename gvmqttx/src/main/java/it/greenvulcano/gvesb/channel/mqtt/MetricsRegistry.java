@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 GreenVulcano ESB Open Source Project.
+ * All rights reserved.
+ *
+ * This file is part of GreenVulcano ESB.
+ *
+ * GreenVulcano ESB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GreenVulcano ESB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with GreenVulcano ESB. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package it.greenvulcano.gvesb.channel.mqtt;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registration of the adapter metrics in the platform MBean server,
+ * under the <code>it.greenvulcano.gvesb.mqtt</code> domain.
+ */
+public final class MetricsRegistry {
+
+	private static final Logger logger = LoggerFactory.getLogger(MetricsRegistry.class);
+
+	private static final String DOMAIN = "it.greenvulcano.gvesb.mqtt";
+
+	/** the names registered by this bundle, so that none outlives it */
+	private static final Set<ObjectName> registered = ConcurrentHashMap.newKeySet();
+
+	private MetricsRegistry() {
+		// static helper
+	}
+
+	/**
+	 * @param keys the key properties of the name, as type followed by name/value pairs
+	 * @return the name the metrics were registered with, or <code>null</code> if the registration failed
+	 * 		   or other metrics are already registered with the same name
+	 */
+	public static <T> ObjectName register(T metrics, Class<T> type, String... keys) {
+		StringBuilder name = new StringBuilder(DOMAIN).append(":type=").append(keys[0]);
+		for (int k = 1; k + 1 < keys.length; k += 2) {
+			name.append(',').append(keys[k]).append('=').append(ObjectName.quote(String.valueOf(keys[k + 1])));
+		}
+
+		try {
+			ObjectName objectName = new ObjectName(name.toString());
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(objectName)) {
+				logger.debug("GVESB MQTT metrics already registered for " + name);
+				return null;
+			}
+			server.registerMBean(new StandardMBean(metrics, type), objectName);
+			registered.add(objectName);
+			return objectName;
+		} catch (JMException | RuntimeException e) {
+			logger.warn("GVESB MQTT metrics registration failed for " + name, e);
+			return null;
+		}
+	}
+
+	public static void unregister(ObjectName objectName) {
+		if (objectName == null || !registered.remove(objectName)) {
+			return;
+		}
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(objectName)) {
+				server.unregisterMBean(objectName);
+			}
+		} catch (JMException | RuntimeException e) {
+			logger.warn("GVESB MQTT metrics unregistration failed for " + objectName, e);
+		}
+	}
+
+	/**
+	 * Unregisters all the metrics still registered, when the bundle stops
+	 */
+	static void unregisterAll() {
+		new ArrayList<>(registered).forEach(MetricsRegistry::unregister);
+	}
+
+}
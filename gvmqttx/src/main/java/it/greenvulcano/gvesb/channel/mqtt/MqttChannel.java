@@ -20,59 +20,187 @@
 package it.greenvulcano.gvesb.channel.mqtt;
 
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.LinkedHashSet;
-import java.util.LinkedList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import javax.management.ObjectName;
 
 import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
-import org.eclipse.paho.client.mqttv3.MqttCallback;
-import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class MqttChannel implements MqttCallback {
+public class MqttChannel {
+	
+	private final static ChannelRegistry registry = new ChannelRegistry();
+	private static final int CALLBACK_THREADS = 2;
 	
-	private final static List<MqttChannel> channels;
+	public static MqttChannelRegistry getRegistry() {
+		return registry;
+	}
 	
-	static {
-		channels = Collections.synchronizedList(new LinkedList<>());
+	static ChannelRegistry registry() {
+		return registry;
 	}
 	
-	public synchronized static List<MqttChannel> getChannels() {
-		return channels;
+	/**
+	 * @deprecated use {@link #getRegistry()}: the list is now a snapshot of the running channels
+	 */
+	@Deprecated
+	public static List<MqttChannel> getChannels() {
+		return Collections.unmodifiableList(new ArrayList<>(registry.getChannels()));
 	}
 	
 	private final Logger logger = LoggerFactory.getLogger(getClass());
 	
-	private final String id, system;
-	private final MqttClient mqttClient;		
+	private final String id, system, clientId;
+	private final String sharedGroup;
+	/** the connections publishing and serving the listeners without a dedicated lane connection */
+	private final ChannelConnection[] connections;
+	/** all the connections, including the ones dedicated to priority lanes */
+	private volatile ChannelConnection[] allConnections;
+	private final Map<String, ChannelConnection> laneConnections = new HashMap<>();
+	private final ConnectionFactory connectionFactory;
+	private final ScheduledExecutorService scheduler;
+	private final ThreadPoolExecutor callbacks;
 	private final Set<SubscriptionListener> listeners;
+	private volatile PublishOutbox outbox;
+	private OutboxFactory outboxFactory;
+	private volatile MqttChannel successor;
+	private final ChannelMetrics metrics;
+	private ObjectName metricsName;
+	private boolean started;
+	private String replyTopic;
+	private int replyQos = 1;
+	private volatile ReplyDispatcher replies;
+	private Map<String, Integer> laneWeights = PriorityLanes.parseWeights(PriorityLanes.DEFAULT_WEIGHTS);
+	private int laneWorkers = Runtime.getRuntime().availableProcessors();
+	private int laneCapacity = 1000;
+	private PriorityLanes.Overflow laneOverflow = PriorityLanes.Overflow.DROP_OLDEST;
+	private PriorityLanes lanes;
 	
-	MqttChannel(String protocol, String host, int port, String username, char[] password, String id, String system) throws MqttException {
+	/**
+	 * @param clientId the MQTT client id, suffixed with the connection index when more connections are opened
+	 * @param connections number of broker connections opened by the channel
+	 * @param sharedGroup if not <code>null</code> every listener without its own group is subscribed on all the connections
+	 * 		  as a shared subscription of this group, otherwise each listener uses a single connection
+	 * @param persistence provides the in-flight message store of each connection
+	 * @param reconnectPolicy how lost connections are established again
+	 * @param cleanSession if <code>false</code> the broker keeps the session and the persisted in-flight messages
+	 * 		  are redelivered after a reconnection or a restart
+	 */
+	MqttChannel(String protocol, String host, int port, String username, char[] password, String id, String system, String clientId,
+				boolean cleanSession, int maxInflight, int connections, String sharedGroup, Supplier<MqttClientPersistence> persistence, ReconnectPolicy reconnectPolicy) throws MqttException {
 		this.id = id;
 		this.system = system;
+		this.sharedGroup = sharedGroup;
 		String endpoint = protocol+"://"+host+":"+port;
-		logger.debug(String.format("GVESB Creating MQTT channel %s/%s on endpoint %s ", system, id, endpoint));
-		listeners = Collections.synchronizedSet(new LinkedHashSet<>());
-		
-		mqttClient = new MqttClient(endpoint, system+"/"+id);		
-		mqttClient.setCallback(this);
+		logger.debug(String.format("GVESB Creating MQTT channel %s/%s on endpoint %s with %d connections", system, id, endpoint, connections));
+		listeners = new CopyOnWriteArraySet<>();
 		
 		MqttConnectOptions connectOptions = new MqttConnectOptions();
 		
 		Optional.ofNullable(username).ifPresent(connectOptions::setUserName);
 		Optional.ofNullable(password).ifPresent(connectOptions::setPassword);
+		connectOptions.setMaxInflight(maxInflight);
+		connectOptions.setCleanSession(cleanSession);
 		
-		mqttClient.connect(connectOptions);		
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, task -> {
+			Thread thread = new Thread(task, "gvmqtt-reconnect-" + system + "/" + id);
+			thread.setDaemon(true);
+			return thread;
+		});
+		// request expirations are cancelled as soon as the reply arrives: do not keep them queued
+		executor.setRemoveOnCancelPolicy(true);
+		scheduler = executor;
+		callbacks = new ThreadPoolExecutor(CALLBACK_THREADS, CALLBACK_THREADS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), task -> {
+			Thread thread = new Thread(task, "gvmqtt-callback-" + system + "/" + id);
+			thread.setDaemon(true);
+			return thread;
+		});
+		callbacks.allowCoreThreadTimeOut(true);
+		replyTopic = "gvesb/replies/" + clientId.replaceAll("[/+#]", "_");
 		
+		metrics = new ChannelMetrics(this);
+		connectionFactory = connectionClientId -> new ChannelConnection(endpoint, connectionClientId, connectOptions, persistence.get(), scheduler, reconnectPolicy, metrics);
+		this.connections = new ChannelConnection[Math.max(1, connections)];
+		try {
+			for (int c = 0; c < this.connections.length; c++) {
+				this.connections[c] = connectionFactory.create(this.connections.length == 1 ? clientId : clientId+"-"+c);
+			}
+		} catch (MqttException | RuntimeException e) {
+			scheduler.shutdownNow();
+			callbacks.shutdownNow();
+			throw e;
+		}
+		allConnections = this.connections;
+		this.clientId = clientId;
+	}
+	
+	/**
+	 * Starts connecting in background; the listeners registered so far are subscribed
+	 * with a single request per connection as soon as it is established.
+	 * The metrics, the outbox and the MQTT clients with their persistence are acquired only here,
+	 * since a channel being rebuilt holds them until it is dismissed
+	 * 
+	 * @return a future completed when all the connections are established for the first time
+	 */
+	CompletableFuture<Void> start() {
+		synchronized (this) {
+			started = true;
+			metricsName = MetricsRegistry.register(metrics, ChannelMetricsMBean.class, "Channel", "system", system, "channel", id);
+			if (lanes != null) {
+				lanes.registerMetrics(system, id);
+			}
+			if (outboxFactory != null) {
+				try {
+					outbox = outboxFactory.open();
+				} catch (IOException | RuntimeException e) {
+					logger.error(String.format("GVESB MQTT channel %s/%s outbox unavailable", system, id), e);
+				}
+			}
+		}
+		return CompletableFuture.allOf(Arrays.stream(allConnections).map(ChannelConnection::start).toArray(CompletableFuture[]::new));
+	}
+	
+	/**
+	 * @return the channel that replaced this one after a configuration reload, or this channel if it is still in use
+	 */
+	public MqttChannel current() {
+		MqttChannel current = this;
+		while (current.successor != null) {
+			current = current.successor;
+		}
+		return current;
+	}
+	
+	/**
+	 * Hands the users of this dismissed channel over to the channel rebuilt from the new configuration
+	 */
+	void supersede(MqttChannel successor) {
+		this.successor = successor;
 	}
 	
 	public String getId(){
@@ -83,88 +211,382 @@ public class MqttChannel implements MqttCallback {
 		return system;
 	}
 	
-	synchronized void registerListener(SubscriptionListener listener) {
+	/**
+	 * @return <code>true</code> if all the connections of the channel are established
+	 */
+	public boolean isConnected() {
+		for (ChannelConnection connection : allConnections) {
+			if (!connection.isConnected()) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * @return the state of the channel connections, the least advanced one when they differ
+	 */
+	public ConnectionState getState() {
+		ConnectionState state = ConnectionState.CONNECTED;
+		for (ChannelConnection connection : allConnections) {
+			if (connection.getState().compareTo(state) > 0) {
+				state = connection.getState();
+			}
+		}
+		return state;
+	}
+	
+	/**
+	 * @return the messages published on all the connections and not yet acknowledged
+	 */
+	public int getInFlight() {
+		int inFlight = 0;
+		for (ChannelConnection connection : allConnections) {
+			inFlight += connection.getInFlight();
+		}
+		return inFlight;
+	}
+	
+	public ChannelMetricsMBean getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Waits a bounded time for all the connections of the channel to be established
+	 * 
+	 * @throws MqttException if a connection is not established in time
+	 */
+	public void awaitConnected() throws MqttException {
+		for (ChannelConnection connection : allConnections) {
+			connection.awaitConnected();
+		}
+	}
+	
+	/**
+	 * Enables the store-and-forward of the messages published while the broker is unreachable
+	 * 
+	 * @param directory where the messages are stored; reopening the same directory resumes their delivery.
+	 * 		  It is opened when the channel starts
+	 */
+	synchronized void enableOutbox(Path directory, long maxMessages, long maxBytes, PublishOutbox.Overflow overflow, int batchSize) throws IOException {
+		Files.createDirectories(directory);
+		outboxFactory = () -> new PublishOutbox(this, directory, maxMessages, maxBytes, overflow, batchSize);
+	}
+	
+	public boolean hasOutbox() {
+		return outbox != null;
+	}
+	
+	/**
+	 * Stores the message in the channel outbox if it cannot be published right away:
+	 * the broker is unreachable, or older messages are still waiting to be delivered.
+	 * 
+	 * @return <code>true</code> if the message was stored and will be delivered later,
+	 * 		   <code>false</code> if the caller can publish it
+	 */
+	public boolean storeIfDisconnected(String topic, byte[] payload, int qos) throws MqttException {
+		PublishOutbox outbox = this.outbox;
+		if (outbox != null && (!outbox.isEmpty() || !connectionFor(topic).isConnected())) {
+			outbox.offer(topic, payload, qos);
+			return true;
+		}
+		return false;
+	}
+	
+	private ChannelConnection connectionFor(String topic) {
+		return connections.length == 1 ? connections[0] : connections[(topic.hashCode() & Integer.MAX_VALUE) % connections.length];
+	}
+	
+	/**
+	 * @param replyTopic the root of the reply topics of the requests published on the channel,
+	 * 		  <code>null</code> for <code>gvesb/replies/&lt;client id&gt;</code>
+	 */
+	synchronized void configureReplies(String replyTopic, int qos) {
+		if (replyTopic != null) {
+			if (replyTopic.isEmpty() || replyTopic.contains("+") || replyTopic.contains("#")) {
+				throw new IllegalArgumentException("Invalid reply topic " + replyTopic);
+			}
+			this.replyTopic = replyTopic.endsWith("/") ? replyTopic.substring(0, replyTopic.length() - 1) : replyTopic;
+		}
+		this.replyQos = qos;
+	}
+	
+	/**
+	 * Subscribes the reply topics along with the listeners, when the channel is started;
+	 * otherwise they are subscribed on the first request
+	 */
+	void subscribeReplies() {
+		replies();
+	}
+	
+	private synchronized ReplyDispatcher replies() {
+		if (replies == null) {
+			ReplyDispatcher dispatcher = new ReplyDispatcher(replyTopic, replyQos, scheduler);
+			for (ChannelConnection connection : allConnections) {
+				connection.setReplies(dispatcher);
+			}
+			dispatcher.setSubscription(connectionFor(dispatcher.getTopic()).subscribe(dispatcher, dispatcher.getTopic()));
+			logger.debug(String.format("GVESB MQTT channel %s/%s subcribed to replies on %s", system, id, dispatcher.getTopic()));
+			replies = dispatcher;
+		} else if (replies.isSubscriptionFailed()) {
+			replies.setSubscription(connectionFor(replies.getTopic()).subscribe(replies, replies.getTopic()));
+		}
+		return replies;
+	}
+	
+	/**
+	 * @return a new id correlating a request with its reply
+	 */
+	public String newCorrelationId() {
+		return replies().nextCorrelationId();
+	}
+	
+	/**
+	 * @return the topic the reply of a request is expected on
+	 */
+	public String getReplyTopic(String correlationId) {
+		return replies().replyTopic(correlationId);
+	}
+	
+	/**
+	 * @return the requests still waiting for their reply
+	 */
+	public int getPendingRequests() {
+		ReplyDispatcher replies = this.replies;
+		return replies != null ? replies.getPendingCount() : 0;
+	}
+	
+	/**
+	 * Publishes a request whose reply is expected on {@link #getReplyTopic(String)}.
+	 * 
+	 * @param correlationId an id from {@link #newCorrelationId()}, that the request must carry to the responder
+	 * 		  (e.g. in its topic)
+	 * @return a future completed with the reply, or exceptionally if the request cannot be delivered
+	 * 		   or the reply does not arrive within the timeout
+	 */
+	public CompletableFuture<MqttMessage> request(String topic, byte[] payload, int qos, String correlationId, long timeoutMillis) throws MqttException {
+		ReplyDispatcher replies = replies();
+		// a reply published before the subscription is active would be lost
+		replies.awaitSubscription(timeoutMillis);
+		CompletableFuture<MqttMessage> reply = replies.expect(correlationId, timeoutMillis);
 		try {
-			 if (!mqttClient.isConnected()) {
-					mqttClient.connect();
+			publishAsync(topic, payload, qos).whenComplete((token, exception) -> {
+				if (exception != null) {
+					reply.completeExceptionally(exception);
 				}
+			});
+		} catch (MqttException | RuntimeException e) {
+			reply.completeExceptionally(e);
+			throw e;
+		}
+		return reply;
+	}
+	
+	/**
+	 * Configures the priority lanes, started when the first listener uses them;
+	 * must be called before the channel is started
+	 * 
+	 * @param weights the weight of each lane by name
+	 * @param workers the threads shared by all the lanes
+	 * @param capacity the messages each lane holds
+	 * @param overflow what happens to a message arriving on a full lane
+	 * @param dedicated the lanes whose listeners subscribe on a connection of their own,
+	 * 		  so that their messages are not queued on the socket behind the others
+	 */
+	synchronized void configureLanes(Map<String, Integer> weights, int workers, int capacity, PriorityLanes.Overflow overflow, Set<String> dedicated) throws MqttException {
+		laneWeights = weights;
+		laneWorkers = workers;
+		laneCapacity = capacity;
+		laneOverflow = overflow;
+		
+		List<ChannelConnection> all = new ArrayList<>(Arrays.asList(allConnections));
+		for (String lane : dedicated) {
+			if (!weights.containsKey(lane)) {
+				throw new IllegalArgumentException("Unknown lane " + lane);
+			}
+			ChannelConnection connection = connectionFactory.create(clientId + "-" + lane);
+			laneConnections.put(lane, connection);
+			all.add(connection);
+			// published at once, so that a failure on the next lane still closes this connection
+			allConnections = all.toArray(new ChannelConnection[all.size()]);
+		}
+	}
+	
+	/**
+	 * @return an executor running the forwards of a listener on a priority lane of the channel
+	 */
+	synchronized ListenerExecutor laneExecutor(String lane) {
+		if (lanes == null) {
+			lanes = new PriorityLanes(system, id, laneWeights, laneWorkers, laneCapacity, laneOverflow);
+			if (started) {
+				lanes.registerMetrics(system, id);
+			}
+		}
+		return lanes.executor(lane);
+	}
+	
+	private Optional<ChannelConnection> laneConnection(SubscriptionListener listener) {
+		return Optional.ofNullable(listener.getLane()).map(laneConnections::get);
+	}
+	
+	/**
+	 * Subscribes a listener without waiting for the broker acknowledge, failures are logged
+	 */
+	synchronized void registerListener(SubscriptionListener listener) {
+		logger.debug(String.format("GVESB MQTT channel %s/%s subcribed to %s", system, id, listener.getTopic()));
+		listeners.add(listener);
 		
-			logger.debug(String.format("GVESB MQTT channel %s/%s subcribed to %s", system, id, listener.getTopic()));
-			listeners.add(listener);
-			
-			Map<String, Integer> topics = listeners.stream().collect(Collectors.toMap(SubscriptionListener::getTopic, SubscriptionListener::getQoS));
-						
-			mqttClient.subscribe(topics.keySet().toArray(new String[]{}), topics.values().stream().mapToInt(Integer::intValue).toArray());
-		} catch (MqttException exception) {
-			logger.error(String.format("GVESB MQTT channel %s/%s subscribe error on", system, id, listener.getTopic()), exception);
+		String group = Optional.ofNullable(listener.getGroup()).orElse(sharedGroup);
+		if (group != null) {
+			String subscription = "$share/" + group + "/" + listener.getTopic();
+			for (ChannelConnection connection : laneConnection(listener).map(Collections::singletonList).orElseGet(() -> Arrays.asList(connections))) {
+				logFailure(connection.subscribe(listener, subscription), "subscribe error on " + subscription);
+			}
+		} else {
+			logFailure(laneConnection(listener).orElseGet(() -> connectionFor(listener.getTopic())).subscribe(listener, listener.getTopic()),
+					   "subscribe error on " + listener.getTopic());
 		}
 	}
 	
+	/**
+	 * Unsubscribes and stops a single listener, leaving the others on the same topic untouched
+	 */
+	synchronized void unregisterListener(SubscriptionListener listener) {
+		logger.debug(String.format("GVESB MQTT channel %s/%s unsubcribe listener to %s", system, id, listener.getTopic()));
+		listeners.remove(listener);
+		for (ChannelConnection connection : allConnections) {
+			logFailure(connection.unsubscribe(listener), "unsubscribe error on " + listener.getTopic());
+		}
+		listener.stop();
+	}
+	
 	synchronized void unregisterListener(String topic) {
-		try {			
-			logger.debug(String.format("GVESB MQTT channel %s/%s unsubcribe to %s", system, id, topic));
-			mqttClient.unsubscribe(topic);
-			List<SubscriptionListener> unwanted = listeners.stream()
-					.filter(l->l.getTopic().equals(topic))
-					.collect(Collectors.toList());
-			
-			listeners.removeAll(unwanted);
-		} catch (MqttException exception) {
-			logger.error(String.format("GVESB MQTT channel %s/%s unsubscribe error", system, id), exception);
-		}	
+		logger.debug(String.format("GVESB MQTT channel %s/%s unsubcribe to %s", system, id, topic));
+		for (ChannelConnection connection : allConnections) {
+			logFailure(connection.unsubscribe(topic), "unsubscribe error on " + topic);
+		}
+		listeners.removeIf(l->l.getTopic().equals(topic));
 	}
 	
+	private void logFailure(CompletableFuture<Void> operation, String message) {
+		operation.whenComplete((result, exception) -> {
+			if (exception != null) {
+				logger.error(String.format("GVESB MQTT channel %s/%s %s", system, id, message), exception);
+			}
+		});
+	}
+	
+	/**
+	 * Publishes a message waiting for its delivery to complete according to the QoS
+	 */
 	public void publish(String topic, byte[] payload, int qos) throws MqttException  {
-		       
-        MqttMessage message = new MqttMessage(payload);
-        message.setQos(qos);
-        if (!mqttClient.isConnected()) {
-			mqttClient.connect();
+		try {
+			publishAsync(topic, payload, qos).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MqttException(MqttException.REASON_CODE_CLIENT_EXCEPTION, e);
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof MqttException ? (MqttException) e.getCause() : new MqttException(e.getCause());
 		}
-        mqttClient.publish(topic, message);		        
-		    
 	}
-
-	@Override
-	public void messageArrived(String topic, MqttMessage message) throws Exception {		
-		
-		synchronized (listeners) {
-			listeners.stream().forEach(l->l.processMessage(topic, message));
-		}		
-	}	
 	
-	@Override
-	public void deliveryComplete(IMqttDeliveryToken token) {
-		// do nothing		
+	/**
+	 * Enqueues a message for publication without waiting for the broker acknowledge.
+	 * 
+	 * Messages are spread over the channel connections by topic, so the ones on the same topic keep their order.
+	 * The number of messages in flight on each connection is bounded by the configured window:
+	 * when it is full the caller waits for a slot to be released.
+	 * While the connection is being established again the caller waits for it up to the configured connect wait.
+	 * 
+	 * @return a future completed with the delivery token once the delivery completes according to the QoS,
+	 * 		   or completed exceptionally if the delivery fails
+	 */
+	public CompletableFuture<IMqttDeliveryToken> publishAsync(String topic, byte[] payload, int qos) throws MqttException {
+		return connectionFor(topic).publishAsync(topic, payload, qos);
 	}
 	
-	@Override
-	public void connectionLost(Throwable cause) {
-		logger.error(String.format("GVESB MQTT channel %s/%s connection lost", system, id), cause);		
+	/**
+	 * @return the executor running the completion callbacks of the asynchronous deliveries,
+	 * 		   away from the MQTT client threads; the callbacks already queued still run after the channel is dismissed
+	 */
+	public Executor getCallbackExecutor() {
+		return callbacks;
 	}
 	
 	void dismiss() {
-		try {
-			if (mqttClient.isConnected()) {
-				mqttClient.disconnect();
+		if (outbox != null) {
+			outbox.stop();
+			outbox = null;
+		}
+		for (ChannelConnection connection : allConnections) {
+			try {
+				connection.close();
+			} catch (MqttException e) {
+				logger.error(String.format("GVESB MQTT channel %s/%s dismission error on %s", system, id, connection.getClientId()), e);
 			}
-			listeners.forEach(SubscriptionListener::stop);
-			listeners.clear();
-			mqttClient.close();
-		} catch (MqttException e) {
-			logger.error(String.format("GVESB MQTT channel %s/%s dismission error", system, id), e);
+		}
+		if (replies != null) {
+			replies.stop();
+		}
+		scheduler.shutdownNow();
+		// lets the failure callbacks of the deliveries failed by the closing connections run
+		callbacks.shutdown();
+		listeners.forEach(SubscriptionListener::stop);
+		listeners.clear();
+		synchronized (this) {
+			if (lanes != null) {
+				lanes.shutdown();
+				lanes = null;
+			}
+			MetricsRegistry.unregister(metricsName);
+			metricsName = null;
 		}
 	}	
 		
+	/**
+	 * Lifecycle of the channel connections, from the most to the least advanced
+	 */
+	@FunctionalInterface
+	private interface ConnectionFactory {
+		ChannelConnection create(String clientId) throws MqttException;
+	}
+	
+	@FunctionalInterface
+	private interface OutboxFactory {
+		PublishOutbox open() throws IOException;
+	}
+	
+	public enum ConnectionState {
+		CONNECTED, CONNECTING, DISCONNECTED, CLOSED
+	}
+	
 	public interface SubscriptionListener {
 		
 		String getTopic();
 		
+		/**
+		 * @return the consumer group sharing the subscription among GreenVulcano nodes,
+		 * 		   <code>null</code> for a plain subscription
+		 */
+		default String getGroup() {
+			return null;
+		}
+		
 		Integer getQoS();
+		
+		/**
+		 * @return the priority lane of the listener, <code>null</code> if it has none
+		 */
+		default String getLane() {
+			return null;
+		}
 				
 		void stop();
 		
+		/**
+		 * Invoked by the channel only for topics matching the filter returned by {@link #getTopic()}
+		 */
 		void processMessage(String topic, MqttMessage message);
 
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,42 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 GreenVulcano ESB Open Source Project.
+ * All rights reserved.
+ *
+ * This file is part of GreenVulcano ESB.
+ *
+ * GreenVulcano ESB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GreenVulcano ESB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with GreenVulcano ESB. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package it.greenvulcano.gvesb.channel.mqtt;
+
+import java.util.Collection;
+import java.util.Optional;
+
+/**
+ * Lookup of the running MQTT channels, also available as an OSGi service
+ * to let other bundles publish through them.
+ */
+public interface MqttChannelRegistry {
+
+	/**
+	 * @param system the <code>id-system</code> of the channel
+	 * @param channel the <code>id-channel</code> of the channel
+	 */
+	Optional<MqttChannel> lookup(String system, String channel);
+
+	/**
+	 * @return a read-only view of the running channels
+	 */
+	Collection<MqttChannel> getChannels();
+
+}
@@ -0,0 +1,46 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 GreenVulcano ESB Open Source Project.
+ * All rights reserved.
+ *
+ * This file is part of GreenVulcano ESB.
+ *
+ * GreenVulcano ESB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GreenVulcano ESB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with GreenVulcano ESB. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package it.greenvulcano.gvesb.channel.mqtt;
+
+import java.io.IOException;
+
+/**
+ * A compression algorithm applied to the MQTT payloads, registered in {@link PayloadCodecs}.
+ */
+public interface PayloadCodec {
+
+	/**
+	 * @return the name used in the configuration
+	 */
+	String getName();
+
+	/**
+	 * @return the identifier written in the header of the compressed payloads, unique among the registered codecs
+	 */
+	int getId();
+
+	byte[] compress(byte[] payload) throws IOException;
+
+	/**
+	 * @param originalLength the length of the uncompressed payload
+	 */
+	byte[] decompress(byte[] data, int offset, int length, int originalLength) throws IOException;
+
+}
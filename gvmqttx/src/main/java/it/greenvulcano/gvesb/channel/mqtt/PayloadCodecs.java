@@ -0,0 +1,286 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 GreenVulcano ESB Open Source Project.
+ * All rights reserved.
+ *
+ * This file is part of GreenVulcano ESB.
+ *
+ * GreenVulcano ESB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GreenVulcano ESB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with GreenVulcano ESB. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package it.greenvulcano.gvesb.channel.mqtt;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registry of the {@link PayloadCodec}s and framing of the compressed payloads.
+ * 
+ * A compressed payload starts with a header made of a magic number, the codec id and the original length,
+ * so that receivers detect it and decompress it into a buffer of the exact size.
+ * Payloads without the header, or that cannot be decompressed, are delivered as they are.
+ * 
+ * <code>deflate</code> (id 1, zlib format) and <code>gzip</code> (id 2) are built in; other codecs can be registered by other bundles.
+ */
+public final class PayloadCodecs {
+
+	private static final Logger logger = LoggerFactory.getLogger(PayloadCodecs.class);
+
+	private static final byte[] MAGIC = { 0, 'G', 'V', 'Z' };
+	private static final int HEADER_SIZE = MAGIC.length + 1 + 4;
+	private static final int MAX_DECOMPRESSED_SIZE = 64 * 1024 * 1024;
+	private static final int CHUNK_SIZE = 8 * 1024;
+
+	private static final Map<String, PayloadCodec> codecsByName = new ConcurrentHashMap<>();
+	private static final Map<Integer, PayloadCodec> codecsById = new ConcurrentHashMap<>();
+
+	private static final int MAX_POOLED = Runtime.getRuntime().availableProcessors() * 2;
+
+	/** idle compressors, holding native memory until they are ended */
+	private static final BlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<>(MAX_POOLED);
+	private static final BlockingQueue<Inflater> inflaters = new ArrayBlockingQueue<>(MAX_POOLED);
+	private static final ThreadLocal<byte[]> chunks = ThreadLocal.withInitial(() -> new byte[CHUNK_SIZE]);
+
+	static {
+		registerCodec(new DeflateCodec());
+		registerCodec(new GzipCodec());
+	}
+
+	private PayloadCodecs() {
+		// static registry
+	}
+
+	/**
+	 * Ends the pooled compressors, releasing their native memory, when the bundle stops
+	 */
+	static void endPooled() {
+		Deflater deflater;
+		while ((deflater = deflaters.poll()) != null) {
+			deflater.end();
+		}
+		Inflater inflater;
+		while ((inflater = inflaters.poll()) != null) {
+			inflater.end();
+		}
+	}
+
+	public static void registerCodec(PayloadCodec codec) {
+		if (codec.getId() < 0 || codec.getId() > 255) {
+			throw new IllegalArgumentException("Codec id out of range: " + codec.getId());
+		}
+		codecsByName.put(codec.getName(), codec);
+		codecsById.put(codec.getId(), codec);
+	}
+
+	public static void unregisterCodec(PayloadCodec codec) {
+		codecsByName.remove(codec.getName(), codec);
+		codecsById.remove(codec.getId(), codec);
+	}
+
+	public static Optional<PayloadCodec> getCodec(String name) {
+		return Optional.ofNullable(codecsByName.get(name));
+	}
+
+	/**
+	 * Compresses the payload if it is at least <code>minSize</code> bytes long and compression actually reduces it
+	 * 
+	 * @return the framed compressed payload, or the payload itself
+	 */
+	public static byte[] encode(PayloadCodec codec, byte[] payload, int minSize) throws IOException {
+		if (codec == null || payload.length < minSize) {
+			return payload;
+		}
+
+		byte[] compressed = codec.compress(payload);
+		if (HEADER_SIZE + compressed.length >= payload.length) {
+			return payload;
+		}
+
+		return ByteBuffer.allocate(HEADER_SIZE + compressed.length)
+						 .put(MAGIC)
+						 .put((byte) codec.getId())
+						 .putInt(payload.length)
+						 .put(compressed)
+						 .array();
+	}
+
+	/**
+	 * @return the decompressed payload if it was compressed by a registered codec, the payload itself otherwise
+	 */
+	public static byte[] decode(byte[] payload) {
+		if (!isCompressed(payload)) {
+			return payload;
+		}
+
+		ByteBuffer header = ByteBuffer.wrap(payload, MAGIC.length, HEADER_SIZE - MAGIC.length);
+		int id = header.get() & 0xFF;
+		int originalLength = header.getInt();
+		PayloadCodec codec = codecsById.get(id);
+		if (codec == null || originalLength < 0 || originalLength > MAX_DECOMPRESSED_SIZE) {
+			logger.warn(String.format("GVESB MQTT payload with unsupported compression (codec %d, %d bytes) delivered as is", id, originalLength));
+			return payload;
+		}
+
+		try {
+			return codec.decompress(payload, HEADER_SIZE, payload.length - HEADER_SIZE, originalLength);
+		} catch (IOException | RuntimeException e) {
+			logger.warn(String.format("GVESB MQTT payload decompression with %s failed, delivered as is", codec.getName()), e);
+			return payload;
+		}
+	}
+
+	private static boolean isCompressed(byte[] payload) {
+		if (payload.length < HEADER_SIZE) {
+			return false;
+		}
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (payload[i] != MAGIC[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static byte[] readFully(InputStream stream, int length) throws IOException {
+		byte[] data = new byte[length];
+		int read = 0;
+		while (read < length) {
+			int n = stream.read(data, read, length - read);
+			if (n < 0) {
+				throw new IOException("Compressed payload truncated at " + read + " of " + length + " bytes");
+			}
+			read += n;
+		}
+		return data;
+	}
+
+	/**
+	 * Deflate in the zlib format (RFC 1950), with the deflaters and inflaters taken from the pools
+	 */
+	private static final class DeflateCodec implements PayloadCodec {
+
+		@Override
+		public String getName() {
+			return "deflate";
+		}
+
+		@Override
+		public int getId() {
+			return 1;
+		}
+
+		@Override
+		public byte[] compress(byte[] payload) {
+			Deflater deflater = Optional.ofNullable(deflaters.poll()).orElseGet(Deflater::new);
+			try {
+				byte[] chunk = chunks.get();
+				deflater.setInput(payload);
+				deflater.finish();
+
+				ByteArrayOutputStream compressed = new ByteArrayOutputStream(payload.length / 2 + 64);
+				while (!deflater.finished()) {
+					int n = deflater.deflate(chunk);
+					compressed.write(chunk, 0, n);
+				}
+				return compressed.toByteArray();
+			} finally {
+				deflater.reset();
+				if (!deflaters.offer(deflater)) {
+					deflater.end();
+				}
+			}
+		}
+
+		@Override
+		public byte[] decompress(byte[] data, int offset, int length, int originalLength) throws IOException {
+			Inflater inflater = Optional.ofNullable(inflaters.poll()).orElseGet(Inflater::new);
+			try {
+				inflater.setInput(data, offset, length);
+
+				byte[] payload = new byte[originalLength];
+				int inflated = 0;
+				while (inflated < originalLength && !inflater.finished()) {
+					int n = inflater.inflate(payload, inflated, originalLength - inflated);
+					if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+						break;
+					}
+					inflated += n;
+				}
+
+				if (inflated != originalLength || !inflater.finished()) {
+					throw new IOException("Inflated " + inflated + " bytes, expected " + originalLength);
+				}
+				return payload;
+			} catch (DataFormatException e) {
+				throw new IOException(e);
+			} finally {
+				inflater.reset();
+				if (!inflaters.offer(inflater)) {
+					inflater.end();
+				}
+			}
+		}
+
+	}
+
+	private static final class GzipCodec implements PayloadCodec {
+
+		@Override
+		public String getName() {
+			return "gzip";
+		}
+
+		@Override
+		public int getId() {
+			return 2;
+		}
+
+		@Override
+		public byte[] compress(byte[] payload) throws IOException {
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream(payload.length / 2 + 64);
+			try (GZIPOutputStream gzip = new GZIPOutputStream(compressed, CHUNK_SIZE)) {
+				gzip.write(payload);
+			}
+			return compressed.toByteArray();
+		}
+
+		@Override
+		public byte[] decompress(byte[] data, int offset, int length, int originalLength) throws IOException {
+			try (GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(data, offset, length), CHUNK_SIZE)) {
+				byte[] payload = readFully(gzip, originalLength);
+				// reaching the end of the stream verifies the gzip trailer checksum
+				if (gzip.read() >= 0) {
+					throw new IOException("Compressed payload longer than " + originalLength + " bytes");
+				}
+				return payload;
+			}
+		}
+
+	}
+
+}
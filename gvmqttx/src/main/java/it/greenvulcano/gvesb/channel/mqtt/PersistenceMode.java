@@ -0,0 +1,59 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 GreenVulcano ESB Open Source Project.
+ * All rights reserved.
+ *
+ * This file is part of GreenVulcano ESB.
+ *
+ * GreenVulcano ESB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GreenVulcano ESB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with GreenVulcano ESB. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package it.greenvulcano.gvesb.channel.mqtt;
+
+import java.nio.file.Path;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
+
+/**
+ * Storage of the QoS 1/2 in-flight state of the channel connections
+ */
+enum PersistenceMode {
+
+	/** one file per in-flight message (Paho default) */
+	FILE {
+		@Override
+		MqttClientPersistence create(Path directory) {
+			return new MqttDefaultFilePersistence(directory.toString());
+		}
+	},
+
+	/** in-flight messages are lost if the process stops */
+	MEMORY {
+		@Override
+		MqttClientPersistence create(Path directory) {
+			return new MemoryPersistence();
+		}
+	},
+
+	/** memory-mapped append-only log */
+	MAPPED {
+		@Override
+		MqttClientPersistence create(Path directory) {
+			return new MappedSegmentPersistence(directory, MappedSegmentPersistence.DEFAULT_SEGMENT_SIZE);
+		}
+	};
+
+	abstract MqttClientPersistence create(Path directory);
+
+}
@@ -0,0 +1,355 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 GreenVulcano ESB Open Source Project.
+ * All rights reserved.
+ *
+ * This file is part of GreenVulcano ESB.
+ *
+ * GreenVulcano ESB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GreenVulcano ESB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with GreenVulcano ESB. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package it.greenvulcano.gvesb.channel.mqtt;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Priority lanes of a {@link MqttChannel}: the forwards of the listeners are queued by lane
+ * and run by a pool of workers shared by all the lanes.
+ * 
+ * Workers take the next message with a smooth weighted round robin over the lanes having messages waiting,
+ * so each busy lane gets a share of the workers proportional to its weight, and a flood on a low lane
+ * cannot delay the messages of a higher one by more than a few turns. Idle lanes leave their share to the others.
+ * Each lane is bounded and applies an {@link Overflow} policy when full. Waiting for free space blocks the MQTT
+ * client thread, which also delivers to the other lanes of the connection: a flooded lane would then stall them,
+ * so only lanes with a dedicated connection should block.
+ */
+final class PriorityLanes {
+
+	static final String DEFAULT_WEIGHTS = "high:8,normal:4,low:1";
+
+	enum Overflow {
+		/** the callback thread waits for free space, stalling every lane served by the same connection */
+		BLOCK,
+		/** the oldest message of the lane is discarded */
+		DROP_OLDEST,
+		/** the arriving message is discarded */
+		DROP_NEWEST
+	}
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final String name;
+	private final Map<String, Lane> lanes = new LinkedHashMap<>();
+	private final Lane[] order;
+	private final Thread[] workers;
+	private final Overflow overflow;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition available = lock.newCondition();
+	private volatile boolean running = true;
+
+	/**
+	 * @param weights the weight of each lane by name
+	 * @param capacity the messages each lane holds
+	 * @param overflow what happens to a message arriving on a full lane
+	 */
+	PriorityLanes(String system, String channel, Map<String, Integer> weights, int threads, int capacity, Overflow overflow) {
+		this.name = "gvmqtt-" + system + "/" + channel;
+		this.overflow = overflow;
+
+		weights.forEach((lane, weight) -> {
+			if (weight <= 0) {
+				throw new IllegalArgumentException("Invalid weight " + weight + " for lane " + lane);
+			}
+			lanes.put(lane, new Lane(lane, weight, Math.max(1, capacity)));
+		});
+		if (lanes.isEmpty()) {
+			throw new IllegalArgumentException("No lanes defined");
+		}
+		order = lanes.values().toArray(new Lane[lanes.size()]);
+
+		workers = new Thread[Math.max(1, threads)];
+		for (int w = 0; w < workers.length; w++) {
+			workers[w] = new Thread(this::work, name + "-lane-" + w);
+			workers[w].setDaemon(true);
+			workers[w].start();
+		}
+
+		logger.debug(String.format("GVESB MQTT priority lanes %s started with %d workers on lanes %s (overflow %s)", name, workers.length, weights, overflow));
+	}
+
+	/**
+	 * @param weights comma separated <code>name:weight</code> pairs, e.g. <code>high:8,normal:4,low:1</code>
+	 */
+	static Map<String, Integer> parseWeights(String weights) {
+		Map<String, Integer> parsed = new LinkedHashMap<>();
+		Arrays.stream(weights.split(","))
+			  .map(String::trim)
+			  .filter(lane -> !lane.isEmpty())
+			  .forEach(lane -> {
+				  int separator = lane.indexOf(':');
+				  parsed.put(separator < 0 ? lane : lane.substring(0, separator).trim(),
+						  	 separator < 0 ? 1 : Integer.parseInt(lane.substring(separator + 1).trim()));
+			  });
+		return parsed;
+	}
+
+	/**
+	 * Exposes the metrics of the lanes, once the channel is started and a previous channel
+	 * with the same name has released them
+	 */
+	void registerMetrics(String system, String channel) {
+		for (Lane lane : order) {
+			lane.metricsName = MetricsRegistry.register(lane, LaneMetricsMBean.class, "Lane", "system", system, "channel", channel, "lane", lane.name);
+		}
+	}
+
+	boolean hasLane(String lane) {
+		return lanes.containsKey(lane);
+	}
+
+	/**
+	 * @return an executor queuing the tasks of a single listener on the lane;
+	 * 		   shutting it down discards only the tasks of that listener
+	 */
+	ListenerExecutor executor(String lane) {
+		return new LaneView(Optional.ofNullable(lanes.get(lane)).orElseThrow(() -> new IllegalArgumentException("Unknown lane " + lane)));
+	}
+
+	/**
+	 * Smooth weighted round robin: every lane with messages gains its weight,
+	 * the richest one is served and pays back the total weight of the contenders
+	 */
+	private Lane next() {
+		Lane selected = null;
+		int total = 0;
+		for (Lane lane : order) {
+			if (!lane.queue.isEmpty()) {
+				lane.credit += lane.weight;
+				total += lane.weight;
+				if (selected == null || lane.credit > selected.credit) {
+					selected = lane;
+				}
+			}
+		}
+		if (selected != null) {
+			selected.credit -= total;
+		}
+		return selected;
+	}
+
+	private void work() {
+		while (running) {
+			Task task;
+			Lane lane;
+			lock.lock();
+			try {
+				while ((lane = next()) == null) {
+					if (!running) {
+						return;
+					}
+					available.await();
+				}
+				task = lane.queue.poll();
+				lane.notFull.signal();
+			} catch (InterruptedException e) {
+				break;
+			} finally {
+				lock.unlock();
+			}
+
+			lane.queueLatency.record(System.nanoTime() - task.enqueued);
+			try {
+				task.runnable.run();
+			} catch (RuntimeException e) {
+				logger.error(String.format("GVESB MQTT priority lanes %s task error on lane %s", name, lane.name), e);
+			}
+		}
+	}
+
+	void shutdown() {
+		running = false;
+		for (Thread worker : workers) {
+			worker.interrupt();
+		}
+
+		int discarded = 0;
+		lock.lock();
+		try {
+			for (Lane lane : order) {
+				discarded += lane.queue.size();
+				lane.queue.clear();
+				lane.notFull.signalAll();
+				MetricsRegistry.unregister(lane.metricsName);
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (discarded > 0) {
+			logger.warn(String.format("GVESB MQTT priority lanes %s stopped discarding %d pending messages", name, discarded));
+		}
+	}
+
+	private static final class Task {
+		private final LaneView owner;
+		private final String topic;
+		private final Runnable runnable;
+		private final long enqueued = System.nanoTime();
+
+		Task(LaneView owner, String topic, Runnable runnable) {
+			this.owner = owner;
+			this.topic = topic;
+			this.runnable = runnable;
+		}
+	}
+
+	private final class Lane implements LaneMetricsMBean {
+		private final String name;
+		private final int weight;
+		private final int capacity;
+		/** guarded by the lanes lock */
+		private final ArrayDeque<Task> queue = new ArrayDeque<>();
+		private final Condition notFull = lock.newCondition();
+		private int credit;
+		private long dropped;
+		private final LatencyHistogram queueLatency = new LatencyHistogram();
+		private volatile ObjectName metricsName;
+
+		Lane(String name, int weight, int capacity) {
+			this.name = name;
+			this.weight = weight;
+			this.capacity = capacity;
+		}
+
+		@Override
+		public int getWeight() {
+			return weight;
+		}
+
+		@Override
+		public int getQueued() {
+			lock.lock();
+			try {
+				return queue.size();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public long getExecuted() {
+			return queueLatency.getCount();
+		}
+
+		@Override
+		public long getDropped() {
+			lock.lock();
+			try {
+				return dropped;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public double getQueueMeanMicros() {
+			return queueLatency.getMean();
+		}
+
+		@Override
+		public long getQueueP50Micros() {
+			return queueLatency.getPercentile(50);
+		}
+
+		@Override
+		public long getQueueP99Micros() {
+			return queueLatency.getPercentile(99);
+		}
+
+		@Override
+		public long getQueueMaxMicros() {
+			return queueLatency.getMax();
+		}
+	}
+
+	private final class LaneView implements ListenerExecutor {
+		private final Lane lane;
+		private volatile boolean active = true;
+
+		LaneView(Lane lane) {
+			this.lane = lane;
+		}
+
+		/**
+		 * Enqueues a task on the lane, applying the overflow policy if the lane is full
+		 */
+		@Override
+		public void execute(String topic, Runnable task) throws InterruptedException {
+			lock.lockInterruptibly();
+			try {
+				while (lane.queue.size() >= lane.capacity && running && active) {
+					if (overflow == Overflow.DROP_NEWEST) {
+						discard(topic);
+						return;
+					} else if (overflow == Overflow.DROP_OLDEST) {
+						discard(lane.queue.poll().topic);
+					} else {
+						lane.notFull.await(1, TimeUnit.SECONDS);
+					}
+				}
+				if (!running || !active) {
+					throw new IllegalStateException("Lane " + lane.name + " of " + name + " is stopped");
+				}
+				lane.queue.add(new Task(this, topic, task));
+				available.signal();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Counts a discarded message, under the lanes lock
+		 */
+		private void discard(String topic) {
+			lane.dropped++;
+			if (logger.isDebugEnabled()) {
+				logger.debug(String.format("GVESB MQTT priority lanes %s lane %s full: message on %s dropped", name, lane.name, topic));
+			}
+		}
+
+		@Override
+		public void shutdown() {
+			active = false;
+			lock.lock();
+			try {
+				if (lane.queue.removeIf(task -> task.owner == this)) {
+					lane.notFull.signalAll();
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,263 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 GreenVulcano ESB Open Source Project.
+ * All rights reserved.
+ *
+ * This file is part of GreenVulcano ESB.
+ *
+ * GreenVulcano ESB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GreenVulcano ESB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with GreenVulcano ESB. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package it.greenvulcano.gvesb.channel.mqtt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Store-and-forward buffer of the messages published on a {@link MqttChannel} while the broker is unreachable.
+ * 
+ * Messages are appended to a {@link SegmentJournal}, so they survive a restart of the bundle,
+ * and replayed in order and in batches by a background thread once the channel is connected.
+ * A batch is consumed from the journal only when the broker acknowledged its messages,
+ * so the delivery is at least once.
+ */
+final class PublishOutbox {
+
+	enum Overflow {
+		/** the publisher waits for free space */
+		BLOCK,
+		/** the oldest stored message is discarded, unless it is being replayed: then the publisher waits for its acknowledge */
+		DROP_OLDEST,
+		/** the publication fails */
+		FAIL
+	}
+
+	private static final long RETRY_DELAY = 1000;
+	private static final long BATCH_TIMEOUT = 60000;
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final String name;
+	private final MqttChannel channel;
+	private final SegmentJournal journal;
+	private final long maxMessages, maxBytes;
+	private final Overflow overflow;
+	private final int batchSize;
+	private final Thread drainer;
+
+	private volatile boolean running = true;
+	/** messages at the head of the journal handed to the drainer, guarded by the journal */
+	private int delivering;
+
+	PublishOutbox(MqttChannel channel, Path directory, long maxMessages, long maxBytes, Overflow overflow, int batchSize) throws IOException {
+		this.name = channel.getSystem() + "/" + channel.getId();
+		this.channel = channel;
+		this.journal = new SegmentJournal(directory, 16 * 1024 * 1024);
+		this.maxMessages = maxMessages;
+		this.maxBytes = maxBytes;
+		this.overflow = overflow;
+		this.batchSize = Math.max(1, batchSize);
+
+		drainer = new Thread(this::drain, "gvmqtt-outbox-" + name);
+		drainer.setDaemon(true);
+		drainer.start();
+
+		if (!journal.isEmpty()) {
+			logger.info(String.format("GVESB MQTT outbox %s recovered %d messages to deliver", name, journal.size()));
+		}
+	}
+
+	boolean isEmpty() {
+		return journal.isEmpty();
+	}
+
+	long size() {
+		return journal.size();
+	}
+
+	/**
+	 * Stores a message for a later delivery, applying the overflow policy when the outbox is full
+	 * 
+	 * @throws MqttException with reason {@link MqttException#REASON_CODE_CLIENT_CLOSED} once the outbox is stopped,
+	 * 		   also while waiting for room
+	 */
+	void offer(String topic, byte[] payload, int qos) throws MqttException {
+		byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+		byte[] record = ByteBuffer.allocate(1 + 4 + topicBytes.length + payload.length)
+								  .put((byte) qos)
+								  .putInt(topicBytes.length)
+								  .put(topicBytes)
+								  .put(payload)
+								  .array();
+		try {
+			synchronized (journal) {
+				checkRunning();
+				while (isFull(record.length)) {
+					switch (overflow) {
+						case BLOCK:
+							journal.wait();
+							checkRunning();
+							break;
+						case DROP_OLDEST:
+							if (delivering > 0) {
+								// the journal drops only at its head, where the messages are being published
+								journal.wait();
+								checkRunning();
+							} else {
+								journal.dropOldest();
+								logger.warn(String.format("GVESB MQTT outbox %s full: oldest message dropped", name));
+							}
+							break;
+						default:
+							throw new MqttException(MqttException.REASON_CODE_CLIENT_EXCEPTION,
+													new IllegalStateException("MQTT outbox " + name + " full"));
+					}
+				}
+				journal.append(record);
+				journal.notifyAll();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MqttException(MqttException.REASON_CODE_CLIENT_EXCEPTION, e);
+		} catch (IOException e) {
+			throw new MqttException(MqttException.REASON_CODE_CLIENT_EXCEPTION, e);
+		}
+	}
+
+	private boolean isFull(int recordSize) {
+		return !journal.isEmpty() && (journal.size() >= maxMessages || journal.bytes() + recordSize > maxBytes);
+	}
+
+	private void drain() {
+		while (running) {
+			try {
+				synchronized (journal) {
+					while (running && journal.isEmpty()) {
+						journal.wait();
+					}
+				}
+
+				if (!channel.isConnected()) {
+					try {
+						channel.awaitConnected();
+					} catch (MqttException e) {
+						// the channel reconnects in background: look again later
+						Thread.sleep(RETRY_DELAY);
+						continue;
+					}
+				}
+
+				// taken once connected, so that the messages stored meanwhile can still be dropped
+				SegmentJournal.Batch batch;
+				synchronized (journal) {
+					batch = journal.peek(batchSize);
+					delivering = batch.records.size();
+				}
+
+				int delivered = 0;
+				try {
+					delivered = deliver(batch);
+				} finally {
+					synchronized (journal) {
+						journal.commit(batch, delivered);
+						delivering = 0;
+						journal.notifyAll();
+					}
+				}
+
+				if (delivered < batch.records.size()) {
+					Thread.sleep(RETRY_DELAY);
+				}
+			} catch (InterruptedException e) {
+				break;
+			} catch (RuntimeException e) {
+				logger.error(String.format("GVESB MQTT outbox %s drain error", name), e);
+			}
+		}
+	}
+
+	/**
+	 * Publishes a batch and waits for its acknowledge
+	 * 
+	 * @return the number of messages, from the beginning of the batch, delivered successfully
+	 */
+	private int deliver(SegmentJournal.Batch batch) throws InterruptedException {
+		List<CompletableFuture<IMqttDeliveryToken>> deliveries = new ArrayList<>(batch.records.size());
+		try {
+			for (byte[] record : batch.records) {
+				ByteBuffer buffer = ByteBuffer.wrap(record);
+				int qos = buffer.get();
+				byte[] topic = new byte[buffer.getInt()];
+				buffer.get(topic);
+				byte[] payload = new byte[buffer.remaining()];
+				buffer.get(payload);
+
+				deliveries.add(channel.publishAsync(new String(topic, StandardCharsets.UTF_8), payload, qos));
+			}
+		} catch (MqttException e) {
+			// the connection was lost again: the remaining messages are retried once it is restored
+			logger.warn(String.format("GVESB MQTT outbox %s replay interrupted", name), e);
+		}
+
+		int delivered = 0;
+		for (CompletableFuture<IMqttDeliveryToken> delivery : deliveries) {
+			try {
+				delivery.get(BATCH_TIMEOUT, TimeUnit.MILLISECONDS);
+				delivered++;
+			} catch (ExecutionException | TimeoutException e) {
+				logger.warn(String.format("GVESB MQTT outbox %s delivery failed, %d messages will be retried", name, batch.records.size() - delivered), e);
+				break;
+			}
+		}
+		if (delivered > 0) {
+			logger.debug(String.format("GVESB MQTT outbox %s delivered %d stored messages", name, delivered));
+		}
+		return delivered;
+	}
+
+	private void checkRunning() throws MqttException {
+		if (!running) {
+			throw new MqttException(MqttException.REASON_CODE_CLIENT_CLOSED);
+		}
+	}
+
+	void stop() {
+		synchronized (journal) {
+			running = false;
+			// wakes up the producers blocked on a full outbox
+			journal.notifyAll();
+		}
+		drainer.interrupt();
+		try {
+			drainer.join(BATCH_TIMEOUT);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (journal) {
+			journal.close();
+		}
+	}
+
+}
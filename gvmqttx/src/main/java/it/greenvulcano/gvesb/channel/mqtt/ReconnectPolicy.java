@@ -0,0 +1,71 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 GreenVulcano ESB Open Source Project.
+ * All rights reserved.
+ *
+ * This file is part of GreenVulcano ESB.
+ *
+ * GreenVulcano ESB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GreenVulcano ESB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with GreenVulcano ESB. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package it.greenvulcano.gvesb.channel.mqtt;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Delays between the reconnection attempts of a {@link ChannelConnection}.
+ * 
+ * The delay doubles after each failed attempt up to the maximum, and each attempt is scheduled
+ * at a random point of the second half of the delay, so that the clients dropped by the same
+ * broker failure do not reconnect all at once.
+ */
+final class ReconnectPolicy {
+
+	private final long minDelay, maxDelay, connectWait;
+
+	/**
+	 * @param minDelay delay in milliseconds before the first attempt
+	 * @param maxDelay upper bound in milliseconds of the delay
+	 * @param connectWait how long in milliseconds a publisher waits for a disconnected connection to be established again
+	 */
+	ReconnectPolicy(long minDelay, long maxDelay, long connectWait) {
+		if (minDelay <= 0 || maxDelay < minDelay || connectWait < 0) {
+			throw new IllegalArgumentException(String.format("Invalid reconnect delays %d-%d and connect wait %d", minDelay, maxDelay, connectWait));
+		}
+		this.minDelay = minDelay;
+		this.maxDelay = maxDelay;
+		this.connectWait = connectWait;
+	}
+
+	long getMinDelay() {
+		return minDelay;
+	}
+
+	long getConnectWait() {
+		return connectWait;
+	}
+
+	/**
+	 * @return the delay following the given one
+	 */
+	long next(long delay) {
+		return Math.min(maxDelay, delay * 2);
+	}
+
+	/**
+	 * @return a random wait between half the given delay and the delay itself
+	 */
+	long jitter(long delay) {
+		return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+	}
+
+}
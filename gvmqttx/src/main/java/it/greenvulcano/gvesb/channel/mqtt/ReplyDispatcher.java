@@ -0,0 +1,183 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 GreenVulcano ESB Open Source Project.
+ * All rights reserved.
+ *
+ * This file is part of GreenVulcano ESB.
+ *
+ * GreenVulcano ESB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GreenVulcano ESB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with GreenVulcano ESB. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package it.greenvulcano.gvesb.channel.mqtt;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Correlates the replies of the requests published on a {@link MqttChannel}.
+ * 
+ * MQTT 3.1.1 has no response topic nor correlation data, so each request is answered on its own topic,
+ * <code>&lt;reply topic&gt;/&lt;correlation id&gt;</code>: a single wildcard subscription serves all the outstanding requests,
+ * and each reply completes its pending request straight on the MQTT client callback thread,
+ * without going through the channel listeners.
+ */
+final class ReplyDispatcher implements MqttChannel.SubscriptionListener {
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final String replyTopic;
+	private final int qos;
+	private final ScheduledExecutorService scheduler;
+	private final Map<String, CompletableFuture<MqttMessage>> pending = new ConcurrentHashMap<>();
+
+	/** distinguishes the correlation ids of this run from the ones of replies left over by a previous one */
+	private final String run = Long.toString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE, 36);
+	private final AtomicLong sequence = new AtomicLong();
+	private volatile CompletableFuture<Void> subscription = CompletableFuture.completedFuture(null);
+
+	/**
+	 * @param scheduler expires the requests not answered in time
+	 */
+	ReplyDispatcher(String replyTopic, int qos, ScheduledExecutorService scheduler) {
+		this.replyTopic = replyTopic;
+		this.qos = qos;
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * @param subscription completed once the broker acknowledged the reply subscription
+	 */
+	void setSubscription(CompletableFuture<Void> subscription) {
+		this.subscription = subscription;
+	}
+
+	/**
+	 * @return <code>true</code> if the broker refused the reply subscription
+	 */
+	boolean isSubscriptionFailed() {
+		return subscription.isCompletedExceptionally();
+	}
+
+	/**
+	 * Waits for the reply subscription requested while connected; the one recorded while disconnected
+	 * is subscribed along with the listeners as soon as the connection is established
+	 */
+	void awaitSubscription(long timeoutMillis) throws MqttException {
+		CompletableFuture<Void> subscription = this.subscription;
+		if (subscription.isDone() && !subscription.isCompletedExceptionally()) {
+			return;
+		}
+		try {
+			subscription.get(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MqttException(MqttException.REASON_CODE_CLIENT_EXCEPTION, e);
+		} catch (ExecutionException | TimeoutException e) {
+			throw new MqttException(MqttException.REASON_CODE_CLIENT_EXCEPTION, e);
+		}
+	}
+
+	String nextCorrelationId() {
+		return run + "-" + Long.toString(sequence.incrementAndGet(), 36);
+	}
+
+	String replyTopic(String correlationId) {
+		return replyTopic + "/" + correlationId;
+	}
+
+	int getPendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * Records a request before it is published, so that its reply cannot arrive unexpected
+	 * 
+	 * @return a future completed with the reply, or exceptionally with a {@link TimeoutException} if it does not arrive in time
+	 */
+	CompletableFuture<MqttMessage> expect(String correlationId, long timeoutMillis) {
+		CompletableFuture<MqttMessage> reply = new CompletableFuture<>();
+		if (pending.putIfAbsent(correlationId, reply) != null) {
+			throw new IllegalStateException("Request " + correlationId + " already pending");
+		}
+
+		try {
+			ScheduledFuture<?> expiration = scheduler.schedule(() -> reply.completeExceptionally(new TimeoutException("No reply to request " + correlationId + " within " + timeoutMillis + " ms")),
+															   timeoutMillis, TimeUnit.MILLISECONDS);
+			reply.whenComplete((message, exception) -> {
+				pending.remove(correlationId, reply);
+				expiration.cancel(false);
+			});
+		} catch (RejectedExecutionException e) {
+			pending.remove(correlationId, reply);
+			reply.completeExceptionally(new MqttException(MqttException.REASON_CODE_CLIENT_CLOSED));
+		}
+		return reply;
+	}
+
+	/**
+	 * @return <code>true</code> if the message is a reply, then it is not delivered to any listener
+	 */
+	boolean accept(String topic, MqttMessage message) {
+		if (!topic.startsWith(replyTopic) || topic.length() <= replyTopic.length() + 1 || topic.charAt(replyTopic.length()) != '/') {
+			return false;
+		}
+
+		String correlationId = topic.substring(replyTopic.length() + 1);
+		CompletableFuture<MqttMessage> reply = pending.get(correlationId);
+		if (reply != null) {
+			reply.complete(message);
+		} else if (logger.isDebugEnabled()) {
+			logger.debug(String.format("GVESB MQTT late or unknown reply discarded on %s", topic));
+		}
+		return true;
+	}
+
+	@Override
+	public String getTopic() {
+		return replyTopic + "/+";
+	}
+
+	@Override
+	public Integer getQoS() {
+		return qos;
+	}
+
+	@Override
+	public void processMessage(String topic, MqttMessage message) {
+		accept(topic, message);
+	}
+
+	/**
+	 * Fails all the outstanding requests
+	 */
+	@Override
+	public void stop() {
+		MqttException closed = new MqttException(MqttException.REASON_CODE_CLIENT_CLOSED);
+		new ArrayList<>(pending.values()).forEach(reply -> reply.completeExceptionally(closed));
+	}
+
+}
@@ -0,0 +1,295 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 GreenVulcano ESB Open Source Project.
+ * All rights reserved.
+ *
+ * This file is part of GreenVulcano ESB.
+ *
+ * GreenVulcano ESB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GreenVulcano ESB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with GreenVulcano ESB. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package it.greenvulcano.gvesb.channel.mqtt;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Disk-backed FIFO queue of byte records stored in memory-mapped segment files.
+ * 
+ * Records are appended to the last segment, a new one being created when it is full.
+ * The read position (head) is kept in a small mapped file and moved forward by {@link #commit(Batch, int)},
+ * so that the records are consumed at least once; segments entirely behind the head are deleted.
+ * Each record is checksummed: when the journal is reopened every segment is scanned up to
+ * its last valid record, so the content survives a restart or a crash of the process.
+ */
+final class SegmentJournal implements Closeable {
+
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final String HEAD_FILE = "head";
+	/** record length and checksum */
+	private static final int RECORD_HEADER = 8;
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final Path directory;
+	private final int segmentSize;
+	private final TreeMap<Long, Segment> segments = new TreeMap<>();
+	private final MappedByteBuffer head;
+
+	private long headSegment;
+	private int headOffset;
+	private long size, bytes;
+
+	SegmentJournal(Path directory, int segmentSize) throws IOException {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		Files.createDirectories(directory);
+
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				long sequence = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+				segments.put(sequence, Segment.open(file, sequence));
+			}
+		}
+
+		try (FileChannel channel = FileChannel.open(directory.resolve(HEAD_FILE), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			boolean exists = channel.size() >= 12;
+			head = channel.map(FileChannel.MapMode.READ_WRITE, 0, 12);
+			if (exists) {
+				headSegment = head.getLong(0);
+				headOffset = head.getInt(8);
+			}
+		}
+
+		if (segments.isEmpty() || headSegment < segments.firstKey() || headSegment > segments.lastKey()) {
+			headSegment = segments.isEmpty() ? headSegment : segments.firstKey();
+			headOffset = 0;
+		}
+		deleteConsumedSegments();
+
+		for (Map.Entry<Long, Segment> entry : segments.tailMap(headSegment, true).entrySet()) {
+			Segment segment = entry.getValue();
+			int offset = entry.getKey() == headSegment ? headOffset : 0;
+			while (offset < segment.limit) {
+				int length = segment.buffer.getInt(offset);
+				size++;
+				bytes += length;
+				offset += RECORD_HEADER + length;
+			}
+		}
+		logger.debug(String.format("GVESB MQTT journal %s opened with %d records", directory, size));
+	}
+
+	synchronized long size() {
+		return size;
+	}
+
+	synchronized long bytes() {
+		return bytes;
+	}
+
+	synchronized boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @param record a non empty record
+	 */
+	synchronized void append(byte[] record) throws IOException {
+		int required = RECORD_HEADER + record.length;
+		Segment tail = segments.isEmpty() ? null : segments.lastEntry().getValue();
+		if (tail == null || tail.buffer.capacity() - tail.limit < required) {
+			long sequence = tail == null ? headSegment : tail.sequence + 1;
+			tail = Segment.create(directory.resolve(String.format("%020d%s", sequence, SEGMENT_SUFFIX)), sequence, Math.max(segmentSize, required));
+			segments.put(sequence, tail);
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(record, 0, record.length);
+
+		MappedByteBuffer buffer = tail.buffer;
+		buffer.position(tail.limit + RECORD_HEADER);
+		buffer.put(record);
+		buffer.putInt(tail.limit + 4, (int) crc.getValue());
+		buffer.putInt(tail.limit, record.length);
+		tail.limit += required;
+
+		size++;
+		bytes += record.length;
+	}
+
+	/**
+	 * Reads up to <code>max</code> records from the head, without consuming them
+	 */
+	synchronized Batch peek(int max) {
+		Batch batch = new Batch();
+		long segmentIndex = headSegment;
+		int offset = headOffset;
+
+		while (batch.records.size() < max) {
+			Segment segment = segments.get(segmentIndex);
+			if (segment == null) {
+				break;
+			}
+			if (offset >= segment.limit) {
+				if (segmentIndex == segments.lastKey()) {
+					break;
+				}
+				segmentIndex = segments.higherKey(segmentIndex);
+				offset = 0;
+				continue;
+			}
+
+			int length = segment.buffer.getInt(offset);
+			byte[] record = new byte[length];
+			ByteBuffer content = segment.buffer.duplicate();
+			content.position(offset + RECORD_HEADER);
+			content.get(record);
+			offset += RECORD_HEADER + length;
+
+			batch.records.add(record);
+			batch.segments.add(segmentIndex);
+			batch.offsets.add(offset);
+		}
+		return batch;
+	}
+
+	/**
+	 * Consumes the first <code>count</code> records of a batch
+	 */
+	synchronized void commit(Batch batch, int count) {
+		if (count > 0) {
+			advance(batch.segments.get(count - 1), batch.offsets.get(count - 1));
+		}
+	}
+
+	/**
+	 * Discards the record at the head of the journal
+	 * 
+	 * @return <code>false</code> if the journal is empty
+	 */
+	synchronized boolean dropOldest() {
+		Batch oldest = peek(1);
+		commit(oldest, oldest.records.size());
+		return !oldest.records.isEmpty();
+	}
+
+	private void advance(long segmentIndex, int offset) {
+		while (headSegment < segmentIndex || (headSegment == segmentIndex && headOffset < offset)) {
+			Segment segment = segments.get(headSegment);
+			if (headOffset >= segment.limit) {
+				headSegment = segments.higherKey(headSegment);
+				headOffset = 0;
+				continue;
+			}
+			int length = segment.buffer.getInt(headOffset);
+			headOffset += RECORD_HEADER + length;
+			size--;
+			bytes -= length;
+		}
+		head.putLong(0, headSegment);
+		head.putInt(8, headOffset);
+		deleteConsumedSegments();
+	}
+
+	private void deleteConsumedSegments() {
+		while (!segments.isEmpty() && segments.firstKey() < headSegment) {
+			Segment consumed = segments.pollFirstEntry().getValue();
+			try {
+				Files.deleteIfExists(consumed.file);
+			} catch (IOException e) {
+				logger.warn(String.format("GVESB MQTT journal %s cannot delete segment %s", directory, consumed.file), e);
+			}
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		head.force();
+		segments.values().forEach(segment -> segment.buffer.force());
+		segments.clear();
+	}
+
+	/**
+	 * Records read from the journal, with the position following each one
+	 */
+	static final class Batch {
+		final List<byte[]> records = new ArrayList<>();
+		private final List<Long> segments = new ArrayList<>();
+		private final List<Integer> offsets = new ArrayList<>();
+	}
+
+	private static final class Segment {
+		final Path file;
+		final long sequence;
+		final MappedByteBuffer buffer;
+		int limit;
+
+		private Segment(Path file, long sequence, MappedByteBuffer buffer) {
+			this.file = file;
+			this.sequence = sequence;
+			this.buffer = buffer;
+		}
+
+		static Segment create(Path file, long sequence, int size) throws IOException {
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				return new Segment(file, sequence, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+			}
+		}
+
+		/**
+		 * Maps an existing segment, finding the end of its valid records
+		 */
+		static Segment open(Path file, long sequence) throws IOException {
+			Segment segment;
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				segment = new Segment(file, sequence, channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+			}
+
+			MappedByteBuffer buffer = segment.buffer;
+			int offset = 0;
+			while (offset + RECORD_HEADER <= buffer.capacity()) {
+				int length = buffer.getInt(offset);
+				if (length <= 0 || offset + RECORD_HEADER + length > buffer.capacity()) {
+					break;
+				}
+				ByteBuffer content = buffer.duplicate();
+				content.position(offset + RECORD_HEADER).limit(offset + RECORD_HEADER + length);
+				CRC32 crc = new CRC32();
+				crc.update(content);
+				if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+					break;
+				}
+				offset += RECORD_HEADER + length;
+			}
+			segment.limit = offset;
+			return segment;
+		}
+	}
+
+}
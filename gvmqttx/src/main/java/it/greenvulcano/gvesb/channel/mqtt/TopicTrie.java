@@ -0,0 +1,157 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 GreenVulcano ESB Open Source Project.
+ * All rights reserved.
+ *
+ * This file is part of GreenVulcano ESB.
+ *
+ * GreenVulcano ESB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GreenVulcano ESB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with GreenVulcano ESB. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package it.greenvulcano.gvesb.channel.mqtt;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Immutable prefix tree of MQTT topic filters, keyed by topic level.
+ *
+ * The trie is built once from a set of values and their filters;
+ * {@link #match(String)} walks it level by level, so the cost of a lookup depends
+ * on the depth of the topic and not on the number of registered filters.
+ *
+ * Matching follows the MQTT 3.1.1 rules: <code>+</code> matches exactly one level (empty included),
+ * <code>#</code> matches the parent level and any number of child levels,
+ * and wildcards in the first level never match topics starting with <code>$</code>.
+ *
+ * @param <T> the type of the values bound to the filters
+ */
+final class TopicTrie<T> {
+
+	private static final char SEPARATOR = '/';
+	private static final String SINGLE_LEVEL = "+";
+	private static final String MULTI_LEVEL = "#";
+
+	private final Node<T> root = new Node<>();
+
+	TopicTrie(Collection<? extends T> values, Function<? super T, String> filter) {
+		values.forEach(value -> add(filter.apply(value), value));
+	}
+
+	static <T> TopicTrie<T> empty() {
+		return new TopicTrie<>(Collections.emptyList(), value -> null);
+	}
+
+	private void add(String filter, T value) {
+		Node<T> node = root;
+		for (String level : split(filter)) {
+			if (MULTI_LEVEL.equals(level)) {
+				node = node.multiLevel();
+				break;
+			}
+			node = SINGLE_LEVEL.equals(level) ? node.singleLevel() : node.child(level);
+		}
+		node.values.add(value);
+	}
+
+	/**
+	 * @param topic a topic name, as received from the broker
+	 * @return the values whose filter matches the topic, never <code>null</code>
+	 */
+	List<T> match(String topic) {
+		String[] levels = split(topic);
+		List<T> matches = new ArrayList<>();
+		match(root, levels, 0, !topic.isEmpty() && topic.charAt(0) == '$', matches);
+		return matches;
+	}
+
+	private static <T> void match(Node<T> node, String[] levels, int index, boolean system, List<T> matches) {
+		boolean wildcards = !(system && index == 0);
+
+		if (wildcards && node.multiLevel != null) {
+			matches.addAll(node.multiLevel.values);
+		}
+
+		if (index == levels.length) {
+			matches.addAll(node.values);
+			return;
+		}
+
+		if (node.children != null) {
+			Node<T> child = node.children.get(levels[index]);
+			if (child != null) {
+				match(child, levels, index + 1, system, matches);
+			}
+		}
+
+		if (wildcards && node.singleLevel != null) {
+			match(node.singleLevel, levels, index + 1, system, matches);
+		}
+	}
+
+	/**
+	 * Splits a topic on '/' keeping empty levels,
+	 * as required by MQTT (e.g. "a//b" has three levels, "/a" has two)
+	 */
+	static String[] split(String topic) {
+		int count = 1;
+		for (int i = 0; i < topic.length(); i++) {
+			if (topic.charAt(i) == SEPARATOR) count++;
+		}
+
+		String[] levels = new String[count];
+		int start = 0;
+		for (int l = 0; l < count - 1; l++) {
+			int end = topic.indexOf(SEPARATOR, start);
+			levels[l] = topic.substring(start, end);
+			start = end + 1;
+		}
+		levels[count - 1] = topic.substring(start);
+
+		return levels;
+	}
+
+	private static final class Node<T> {
+		private final Set<T> values = new LinkedHashSet<>();
+		private Map<String, Node<T>> children;
+		private Node<T> singleLevel, multiLevel;
+
+		Node<T> child(String level) {
+			if (children == null) {
+				children = new HashMap<>();
+			}
+			return children.computeIfAbsent(level, l -> new Node<>());
+		}
+
+		Node<T> singleLevel() {
+			if (singleLevel == null) {
+				singleLevel = new Node<>();
+			}
+			return singleLevel;
+		}
+
+		Node<T> multiLevel() {
+			if (multiLevel == null) {
+				multiLevel = new Node<>();
+			}
+			return multiLevel;
+		}
+	}
+
+}
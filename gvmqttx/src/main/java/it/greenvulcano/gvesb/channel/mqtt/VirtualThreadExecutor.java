@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 GreenVulcano ESB Open Source Project.
+ * All rights reserved.
+ *
+ * This file is part of GreenVulcano ESB.
+ *
+ * GreenVulcano ESB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GreenVulcano ESB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with GreenVulcano ESB. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package it.greenvulcano.gvesb.channel.mqtt;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs each task on its own virtual thread when the JVM provides them (Java 21+),
+ * on a platform thread pool otherwise.
+ *
+ * Virtual threads are looked up reflectively so that the bundle keeps running on older JVMs.
+ * The number of tasks running at the same time is bounded by a semaphore acquired on the caller thread,
+ * so a flood of messages blocks the MQTT client instead of the downstream systems.
+ */
+final class VirtualThreadExecutor implements ListenerExecutor {
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final String name;
+	private final Semaphore permits;
+	private final ExecutorService executorService;
+
+	VirtualThreadExecutor(String name, int maxConcurrency) {
+		this.name = name;
+		this.permits = new Semaphore(Math.max(1, maxConcurrency));
+
+		ExecutorService virtualThreads = newVirtualThreadExecutor(name);
+		if (virtualThreads != null) {
+			executorService = virtualThreads;
+			logger.debug(String.format("GVESB MQTT executor %s started on virtual threads (max concurrency %d)", name, maxConcurrency));
+		} else {
+			AtomicInteger count = new AtomicInteger();
+			ThreadFactory threadFactory = r -> {
+				Thread thread = new Thread(r, name + "-" + count.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			};
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(permits.availablePermits(), permits.availablePermits(), 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), threadFactory);
+			pool.allowCoreThreadTimeOut(true);
+			executorService = pool;
+			logger.debug(String.format("GVESB MQTT executor %s started on platform threads (max concurrency %d): virtual threads not supported by this JVM", name, maxConcurrency));
+		}
+	}
+
+	private static ExecutorService newVirtualThreadExecutor(String name) {
+		try {
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+			ThreadFactory threadFactory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+
+			return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, threadFactory);
+		} catch (ReflectiveOperationException | LinkageError e) {
+			return null;
+		}
+	}
+
+	@Override
+	public void execute(String topic, Runnable task) throws InterruptedException {
+		permits.acquire();
+		try {
+			executorService.execute(() -> {
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					logger.error(String.format("GVESB MQTT executor %s task error", name), e);
+				} finally {
+					permits.release();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			permits.release();
+			throw new IllegalStateException("Executor " + name + " is stopped", e);
+		}
+	}
+
+	@Override
+	public void shutdown() {
+		executorService.shutdownNow();
+	}
+
+}
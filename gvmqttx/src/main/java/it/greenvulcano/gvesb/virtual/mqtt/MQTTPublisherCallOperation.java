@@ -22,20 +22,33 @@ package it.greenvulcano.gvesb.virtual.mqtt;
 import it.greenvulcano.configuration.XMLConfig;
 import it.greenvulcano.gvesb.buffer.GVBuffer;
 import it.greenvulcano.gvesb.channel.mqtt.MqttChannel;
-import it.greenvulcano.gvesb.internal.data.GVBufferPropertiesHelper;
+import it.greenvulcano.gvesb.channel.mqtt.PayloadCodec;
+import it.greenvulcano.gvesb.channel.mqtt.PayloadCodecs;
+import it.greenvulcano.gvesb.core.pool.GreenVulcanoPool;
+import it.greenvulcano.gvesb.core.pool.GreenVulcanoPoolManager;
 import it.greenvulcano.gvesb.virtual.CallException;
 import it.greenvulcano.gvesb.virtual.CallOperation;
 import it.greenvulcano.gvesb.virtual.ConnectionException;
 import it.greenvulcano.gvesb.virtual.InitializationException;
 import it.greenvulcano.gvesb.virtual.InvalidDataException;
 import it.greenvulcano.gvesb.virtual.OperationKey;
-import it.greenvulcano.util.metadata.PropertiesHandler;
-import it.greenvulcano.util.xml.XMLUtils;
 
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
-import org.slf4j.Logger;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.json.JSONArray;
 import org.json.JSONObject;
+import org.slf4j.Logger;
 import org.w3c.dom.Node;
 
 
@@ -48,12 +61,27 @@ public class MQTTPublisherCallOperation implements CallOperation
 {
     private static Logger    logger   = org.slf4j.LoggerFactory.getLogger(MQTTPublisherCallOperation.class);
 
+    private enum Mode { SINGLE, BATCH, FAN_OUT }
+
     private OperationKey     key       = null;
       
     private String           topic     = null;
+    private TopicTemplate    topicTemplate = null;
     private int           qos       = 0;
+    private Charset          charset   = StandardCharsets.UTF_8;
+    private PayloadCodec     codec     = null;
+    private int              compressionMinSize = 1024;
+    
+    private Mode             mode              = Mode.SINGLE;
+    private TopicTemplate[]  fanOutTopics      = null;
+    private String           fanOutProperty    = null;
+    private boolean          confirmLater      = false;
+    private boolean          storeAndForward   = false;
+    private String           callbackService   = null;
+    private String           callbackOperation = null;
     
     private MqttChannel mqttChannel = null;
+    private PublisherMetrics metrics = null;
 
     /*
      * (non-Javadoc)
@@ -65,20 +93,49 @@ public class MQTTPublisherCallOperation implements CallOperation
     {
         logger.debug("Init start");
         try {            
-            topic = XMLConfig.get(node, "@topic", null);
+            mode = Mode.valueOf(XMLConfig.get(node, "@mode", "single").replace('-', '_').toUpperCase());
+            String topics = XMLConfig.get(node, "@topics", null);
+            if (mode == Mode.FAN_OUT && topics != null) {
+                fanOutTopics = TopicTemplate.split(topics).stream()
+                                     .map(String::trim)
+                                     .filter(t -> !t.isEmpty())
+                                     .map(TopicTemplate::compile)
+                                     .toArray(TopicTemplate[]::new);
+            } else {
+                topic = XMLConfig.get(node, "@topic");
+                topicTemplate = TopicTemplate.compile(topic);
+                fanOutProperty = XMLConfig.get(node, "@fan-out-property", null);
+                if (mode == Mode.FAN_OUT && fanOutProperty == null) {
+                    throw new IllegalArgumentException("Fan-out requires the topics attribute or a fan-out-property");
+                }
+            }
             qos = XMLConfig.getInteger(node, "@qos", 0);
+            charset = Charset.forName(XMLConfig.get(node, "@charset", "UTF-8"));
+            String compression = XMLConfig.get(node, "@compression", "none");
+            if (!"none".equals(compression)) {
+                codec = PayloadCodecs.getCodec(compression).orElseThrow(() -> new IllegalArgumentException("Unknown compression " + compression));
+                compressionMinSize = XMLConfig.getInteger(node, "@compression-min-size", 1024);
+            }
+            confirmLater = "confirm-later".equals(XMLConfig.get(node, "@delivery", "sync"));
+            storeAndForward = XMLConfig.getBoolean(node, "@store-and-forward", false);
+            callbackService = XMLConfig.get(node, "@callback-service", null);
+            callbackOperation = XMLConfig.get(node, "@callback-operation", "Request");
             
             Node channelNode = node.getParentNode();
             String system = XMLConfig.get(channelNode.getParentNode(), "@id-system");
             String channel = XMLConfig.get(channelNode, "@id-channel");
             
-            mqttChannel = MqttChannel.getChannels()
-            						 .stream()
-            						 .filter(c -> c.getSystem().equals(system) && c.getId().equals(channel))
-            						 .findAny()
+            mqttChannel = MqttChannel.getRegistry()
+            						 .lookup(system, channel)
             						 .orElseThrow(NoSuchElementException::new);
             
-            logger.debug("init - loaded parameters: topic= " + (topic != null ? topic : "") + " - qos= " + qos );
+            if (storeAndForward && !mqttChannel.hasOutbox()) {
+                throw new IllegalStateException("Channel " + system + "/" + channel + " has no outbox: store-and-forward not available");
+            }
+            
+            metrics = PublisherMetrics.acquire(system, channel, XMLConfig.get(node, "@name", topic != null ? topic : Arrays.toString(fanOutTopics)), qos);
+            
+            logger.debug("init - loaded parameters: topic= " + (topic != null ? topic : Arrays.toString(fanOutTopics)) + " - qos= " + qos + " - mode= " + mode + " - delivery= " + (confirmLater ? "confirm-later" : "sync"));
             logger.debug("Init stop");
         } catch (NoSuchElementException exc) {
         	throw new InitializationException("GV_INIT_SERVICE_ERROR", new String[][]{{"message", "Channel not found"}},
@@ -100,41 +157,287 @@ public class MQTTPublisherCallOperation implements CallOperation
     @Override
     public GVBuffer perform(GVBuffer gvBuffer) throws ConnectionException, CallException, InvalidDataException
     {
-       
+        long start = System.nanoTime();
         try {
-            Map<String, Object> params = GVBufferPropertiesHelper.getPropertiesMapSO(gvBuffer, true);
-           
-            String locTopic = PropertiesHandler.expand(topic, params, gvBuffer);
-     
-            byte[] payload = null;
+            // follows the channel rebuilt by a configuration reload, if any
+            MqttChannel mqttChannel = this.mqttChannel = this.mqttChannel.current();
             Object obj = gvBuffer.getObject();
-            if (obj instanceof byte[]) {
-                payload = (byte[]) obj;
+            if (obj == null) {
+                throw new Exception("Invalid input type: null");
             }
-            else if (obj instanceof String) {
-                payload = ((String) obj).getBytes();
+
+            if (mode == Mode.BATCH) {
+                publishBatch(mqttChannel, gvBuffer, toElements(obj));
+                return gvBuffer;
             }
-            else if (obj instanceof Node) {
-                payload = XMLUtils.serializeDOMToByteArray_S((Node) obj);
+            else if (mode == Mode.FAN_OUT) {
+                publishFanOut(mqttChannel, gvBuffer, obj);
+                return gvBuffer;
             }
-            else if (obj instanceof JSONObject) {
-                payload = ((JSONObject) obj).toString().getBytes();
+
+            String locTopic = topicTemplate.resolve(gvBuffer);
+            byte[] payload = encode(obj);
+            try {
+                publish(mqttChannel, gvBuffer, locTopic, payload).get();
             }
-            else {
-                throw new Exception("Invalid input type: " + (obj != null ? obj.getClass() : "null"));
+            catch (ExecutionException exc) {
+                throw exc.getCause() instanceof Exception ? (Exception) exc.getCause() : exc;
             }
-
-            mqttChannel.publish(locTopic, payload, qos);             
             
         }
+        catch (InvalidDataException exc) {
+            metrics.failed.increment();
+            throw exc;
+        }
         catch (Exception exc) {
+            metrics.failed.increment();
             throw new CallException("GV_CALL_SERVICE_ERROR", new String[][]{{"service", gvBuffer.getService()},
                     {"system", gvBuffer.getSystem()}, {"tid", gvBuffer.getId().toString()},
                     {"message", exc.getMessage()}}, exc);
         }
+        finally {
+            metrics.publishLatency.record(System.nanoTime() - start);
+        }
         return gvBuffer;
     }
 
+    /**
+     * Serializes the object and compresses it with the configured codec
+     */
+    private byte[] encode(Object obj) throws Exception
+    {
+        long start = System.nanoTime();
+        byte[] payload = PayloadCodecs.encode(codec, PayloadEncoders.encode(obj, charset), compressionMinSize);
+        metrics.encodeLatency.record(System.nanoTime() - start);
+        return payload;
+    }
+
+    /**
+     * Publishes a message according to the delivery configured
+     * 
+     * @return a future completed with the outcome of the publication: <code>DELIVERED</code>, <code>STORED</code>
+     *         in the outbox, or <code>ENQUEUED</code> for a <i>confirm-later</i> delivery
+     */
+    private CompletableFuture<String> publish(MqttChannel mqttChannel, GVBuffer gvBuffer, String locTopic, byte[] payload) throws MqttException
+    {
+        if (storeAndForward && mqttChannel.storeIfDisconnected(locTopic, payload, qos)) {
+            logger.debug("Message stored in outbox for topic " + locTopic);
+            metrics.stored.increment();
+            return CompletableFuture.completedFuture("STORED");
+        }
+
+        long start = System.nanoTime();
+        CompletableFuture<IMqttDeliveryToken> delivery = mqttChannel.publishAsync(locTopic, payload, qos).whenComplete((token, exception) -> {
+            if (exception == null) {
+                metrics.ackLatency.record(System.nanoTime() - start);
+                metrics.delivered.increment();
+            }
+            else if (confirmLater) {
+                // a failed synchronous publication is counted once by the caller
+                metrics.failed.increment();
+            }
+        });
+
+        if (confirmLater) {
+            String system = gvBuffer.getSystem();
+            String tid = gvBuffer.getId().toString();
+            // the failure callback may invoke a GreenVulcano service: never on the MQTT client threads
+            delivery.whenCompleteAsync((token, exception) -> {
+                if (exception != null) {
+                    deliveryFailed(system, tid, locTopic, payload, exception);
+                }
+            }, mqttChannel.getCallbackExecutor());
+            return CompletableFuture.completedFuture("ENQUEUED");
+        }
+        return delivery.thenApply(token -> "DELIVERED");
+    }
+
+    /**
+     * @return the elements of a collection, array or JSON array to publish as separate messages
+     */
+    private static List<?> toElements(Object obj) throws InvalidDataException
+    {
+        if (obj instanceof List) {
+            return (List<?>) obj;
+        }
+        else if (obj instanceof Collection) {
+            return new ArrayList<>((Collection<?>) obj);
+        }
+        else if (obj instanceof Object[]) {
+            return Arrays.asList((Object[]) obj);
+        }
+        else if (obj instanceof JSONArray) {
+            JSONArray array = (JSONArray) obj;
+            List<Object> elements = new ArrayList<>(array.length());
+            for (int i = 0; i < array.length(); i++) {
+                elements.add(array.get(i));
+            }
+            return elements;
+        }
+        throw new InvalidDataException("GV_CALL_SERVICE_ERROR", new String[][]{{"message", "Batch publish requires a collection or a JSON array, found " + obj.getClass().getName()}});
+    }
+
+    /**
+     * @return the value of a field of a JSON object or map element, used to resolve the topic of the element
+     */
+    private static String elementValue(Object element, String name)
+    {
+        Object value = null;
+        if (element instanceof JSONObject) {
+            value = ((JSONObject) element).opt(name);
+        }
+        else if (element instanceof Map) {
+            value = ((Map<?, ?>) element).get(name);
+        }
+        return value != null ? value.toString() : null;
+    }
+
+    /**
+     * Publishes each element as a message, pipelining them over the channel and then waiting for all of them.
+     * The outcome of each element is reported in the GVBuffer properties instead of failing the call.
+     */
+    private void publishBatch(MqttChannel mqttChannel, GVBuffer gvBuffer, List<?> elements) throws Exception
+    {
+        String[] topics = new String[elements.size()];
+        List<CompletableFuture<String>> deliveries = new ArrayList<>(elements.size());
+        MqttException unavailable = null;
+
+        for (int i = 0; i < elements.size(); i++) {
+            Object element = elements.get(i);
+            try {
+                topics[i] = topicTemplate.resolve(gvBuffer, name -> elementValue(element, name));
+                byte[] payload = encode(element);
+                if (unavailable != null) {
+                    throw unavailable;
+                }
+                try {
+                    deliveries.add(publish(mqttChannel, gvBuffer, topics[i], payload));
+                }
+                catch (MqttException exc) {
+                    // the channel is unavailable: the remaining elements are not attempted
+                    unavailable = exc;
+                    throw exc;
+                }
+            }
+            catch (Exception exc) {
+                CompletableFuture<String> failed = new CompletableFuture<>();
+                failed.completeExceptionally(exc);
+                deliveries.add(failed);
+            }
+        }
+
+        reportResults(gvBuffer, topics, deliveries);
+    }
+
+    /**
+     * Publishes the same payload, encoded once, to all the target topics, pipelining them over the channel
+     * and then waiting for all of them. The outcome of each topic is reported in the GVBuffer properties.
+     */
+    private void publishFanOut(MqttChannel mqttChannel, GVBuffer gvBuffer, Object obj) throws Exception
+    {
+        String[] topics = fanOutTopics(gvBuffer);
+        byte[] payload = encode(obj);
+
+        List<CompletableFuture<String>> deliveries = new ArrayList<>(topics.length);
+        MqttException unavailable = null;
+        for (String locTopic : topics) {
+            if (unavailable == null) {
+                try {
+                    deliveries.add(publish(mqttChannel, gvBuffer, locTopic, payload));
+                    continue;
+                }
+                catch (MqttException exc) {
+                    // the channel is unavailable: the remaining topics are not attempted
+                    unavailable = exc;
+                }
+            }
+            CompletableFuture<String> failed = new CompletableFuture<>();
+            failed.completeExceptionally(unavailable);
+            deliveries.add(failed);
+        }
+
+        reportResults(gvBuffer, topics, deliveries);
+    }
+
+    /**
+     * @return the configured topics, or the topic template resolved once for each value of the fan-out property,
+     *         a comma separated list bound in turn to the placeholder with the same name
+     */
+    private String[] fanOutTopics(GVBuffer gvBuffer) throws Exception
+    {
+        if (fanOutTopics != null) {
+            String[] topics = new String[fanOutTopics.length];
+            for (int i = 0; i < topics.length; i++) {
+                topics[i] = fanOutTopics[i].resolve(gvBuffer);
+            }
+            return topics;
+        }
+
+        String values = gvBuffer.getProperty(fanOutProperty);
+        if (values == null) {
+            throw new InvalidDataException("GV_CALL_SERVICE_ERROR", new String[][]{{"message", "Fan-out property " + fanOutProperty + " not found"}});
+        }
+
+        List<String> topics = new ArrayList<>();
+        for (String value : values.split(",")) {
+            String target = value.trim();
+            if (!target.isEmpty()) {
+                topics.add(topicTemplate.resolve(gvBuffer, fanOutProperty, target));
+            }
+        }
+        return topics.toArray(new String[topics.size()]);
+    }
+
+    /**
+     * Waits for all the deliveries and sets their outcome in the GVBuffer:
+     * <code>MQTT_BATCH_SIZE</code>, <code>MQTT_SUCCEEDED</code>, <code>MQTT_FAILED</code> and, for each message,
+     * <code>MQTT_TOPIC_&lt;i&gt;</code>, <code>MQTT_RESULT_&lt;i&gt;</code> and <code>MQTT_ERROR_&lt;i&gt;</code> on failure
+     */
+    private void reportResults(GVBuffer gvBuffer, String[] topics, List<CompletableFuture<String>> deliveries) throws Exception
+    {
+        int failed = 0;
+        for (int i = 0; i < deliveries.size(); i++) {
+            gvBuffer.setProperty("MQTT_TOPIC_" + i, String.valueOf(topics[i]));
+            try {
+                gvBuffer.setProperty("MQTT_RESULT_" + i, deliveries.get(i).get());
+            }
+            catch (ExecutionException exc) {
+                failed++;
+                metrics.failed.increment();
+                logger.warn("Publish failed on topic " + topics[i], exc.getCause());
+                gvBuffer.setProperty("MQTT_RESULT_" + i, "FAILED");
+                gvBuffer.setProperty("MQTT_ERROR_" + i, String.valueOf(exc.getCause().getMessage()));
+            }
+        }
+        gvBuffer.setProperty("MQTT_BATCH_SIZE", String.valueOf(deliveries.size()));
+        gvBuffer.setProperty("MQTT_SUCCEEDED", String.valueOf(deliveries.size() - failed));
+        gvBuffer.setProperty("MQTT_FAILED", String.valueOf(failed));
+    }
+
+    /**
+     * Reports a failed <i>confirm-later</i> delivery, forwarding it to the callback service if configured
+     */
+    private void deliveryFailed(String system, String tid, String topic, byte[] payload, Throwable exception)
+    {
+        logger.error("Delivery failed for message " + tid + " on topic " + topic, exception);
+        if (callbackService != null) {
+            try {
+                GVBuffer failure = new GVBuffer(system, callbackService);
+                failure.setObject(payload);
+                failure.setProperty("MQTT_TOPIC", topic);
+                failure.setProperty("MQTT_QOS", String.valueOf(qos));
+                failure.setProperty("MQTT_ORIGIN_ID", tid);
+                failure.setProperty("MQTT_ERROR", String.valueOf(exception.getMessage()));
+
+                GreenVulcanoPool greenVulcano = GreenVulcanoPoolManager.instance().getGreenVulcanoPool("gvmqtt").orElseGet(GreenVulcanoPoolManager::getDefaultGreenVulcanoPool);
+                greenVulcano.forward(failure, callbackOperation);
+            }
+            catch (Exception exc) {
+                logger.error("Error invoking delivery callback " + system + "/" + callbackService + " for message " + tid, exc);
+            }
+        }
+    }
+
     /*
      * (non-Javadoc)
      *
@@ -154,7 +457,10 @@ public class MQTTPublisherCallOperation implements CallOperation
     @Override
     public void destroy()
     {
-        // do nothing
+        if (metrics != null) {
+            metrics.release();
+            metrics = null;
+        }
     }
 
     /*
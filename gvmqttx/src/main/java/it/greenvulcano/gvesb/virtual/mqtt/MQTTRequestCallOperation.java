@@ -0,0 +1,211 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 GreenVulcano ESB Open Source Project.
+ * All rights reserved.
+ *
+ * This file is part of GreenVulcano ESB.
+ *
+ * GreenVulcano ESB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GreenVulcano ESB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with GreenVulcano ESB. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package it.greenvulcano.gvesb.virtual.mqtt;
+
+import it.greenvulcano.configuration.XMLConfig;
+import it.greenvulcano.gvesb.buffer.GVBuffer;
+import it.greenvulcano.gvesb.channel.mqtt.MqttChannel;
+import it.greenvulcano.gvesb.channel.mqtt.PayloadCodec;
+import it.greenvulcano.gvesb.channel.mqtt.PayloadCodecs;
+import it.greenvulcano.gvesb.virtual.CallException;
+import it.greenvulcano.gvesb.virtual.CallOperation;
+import it.greenvulcano.gvesb.virtual.ConnectionException;
+import it.greenvulcano.gvesb.virtual.InitializationException;
+import it.greenvulcano.gvesb.virtual.InvalidDataException;
+import it.greenvulcano.gvesb.virtual.OperationKey;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.slf4j.Logger;
+import org.w3c.dom.Node;
+
+/**
+ * Publishes a request and waits for its reply on the same channel.
+ * 
+ * The request carries no MQTT 3.1.1 properties: before the topic is resolved the GVBuffer receives the
+ * <code>MQTT_CORRELATION_ID</code> and <code>MQTT_REPLY_TOPIC</code> properties, so that the topic template
+ * can pass them to the responder, that publishes its reply on <code>MQTT_REPLY_TOPIC</code>.
+ * The reply replaces the GVBuffer object.
+ */
+public class MQTTRequestCallOperation implements CallOperation
+{
+    private static Logger    logger   = org.slf4j.LoggerFactory.getLogger(MQTTRequestCallOperation.class);
+
+    private OperationKey     key       = null;
+
+    private String           topic     = null;
+    private TopicTemplate    topicTemplate = null;
+    private int              qos       = 0;
+    private Charset          charset   = StandardCharsets.UTF_8;
+    private PayloadCodec     codec     = null;
+    private int              compressionMinSize = 1024;
+    private boolean          decompress = true;
+    private long             timeout   = 30000;
+
+    private MqttChannel mqttChannel = null;
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see it.greenvulcano.gvesb.virtual.Operation#init(org.w3c.dom.Node)
+     */
+    @Override
+    public void init(Node node) throws InitializationException
+    {
+        logger.debug("Init start");
+        try {
+            topic = XMLConfig.get(node, "@topic");
+            topicTemplate = TopicTemplate.compile(topic);
+            qos = XMLConfig.getInteger(node, "@qos", 0);
+            charset = Charset.forName(XMLConfig.get(node, "@charset", "UTF-8"));
+            String compression = XMLConfig.get(node, "@compression", "none");
+            if (!"none".equals(compression)) {
+                codec = PayloadCodecs.getCodec(compression).orElseThrow(() -> new IllegalArgumentException("Unknown compression " + compression));
+                compressionMinSize = XMLConfig.getInteger(node, "@compression-min-size", 1024);
+            }
+            decompress = XMLConfig.getBoolean(node, "@decompress", true);
+            timeout = XMLConfig.getLong(node, "@timeout", 30000);
+
+            Node channelNode = node.getParentNode();
+            String system = XMLConfig.get(channelNode.getParentNode(), "@id-system");
+            String channel = XMLConfig.get(channelNode, "@id-channel");
+
+            mqttChannel = MqttChannel.getRegistry()
+                                     .lookup(system, channel)
+                                     .orElseThrow(NoSuchElementException::new);
+
+            logger.debug("init - loaded parameters: topic= " + topic + " - qos= " + qos + " - timeout= " + timeout);
+            logger.debug("Init stop");
+        } catch (NoSuchElementException exc) {
+            throw new InitializationException("GV_INIT_SERVICE_ERROR", new String[][]{{"message", "Channel not found"}},
+                    exc);
+        } catch (Exception exc) {
+            throw new InitializationException("GV_INIT_SERVICE_ERROR", new String[][]{{"message", exc.getMessage()}},
+                    exc);
+        }
+
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * it.greenvulcano.gvesb.virtual.CallOperation#perform(it.greenvulcano.gvesb
+     * .buffer.GVBuffer)
+     */
+    @Override
+    public GVBuffer perform(GVBuffer gvBuffer) throws ConnectionException, CallException, InvalidDataException
+    {
+        try {
+            // follows the channel rebuilt by a configuration reload, if any
+            MqttChannel mqttChannel = this.mqttChannel = this.mqttChannel.current();
+            Object obj = gvBuffer.getObject();
+            if (obj == null) {
+                throw new Exception("Invalid input type: null");
+            }
+
+            String correlationId = mqttChannel.newCorrelationId();
+            gvBuffer.setProperty("MQTT_CORRELATION_ID", correlationId);
+            gvBuffer.setProperty("MQTT_REPLY_TOPIC", mqttChannel.getReplyTopic(correlationId));
+
+            String locTopic = topicTemplate.resolve(gvBuffer);
+            byte[] payload = PayloadCodecs.encode(codec, PayloadEncoders.encode(obj, charset), compressionMinSize);
+
+            MqttMessage reply;
+            try {
+                reply = mqttChannel.request(locTopic, payload, qos, correlationId, timeout).get();
+            }
+            catch (ExecutionException exc) {
+                throw exc.getCause() instanceof Exception ? (Exception) exc.getCause() : exc;
+            }
+
+            gvBuffer.setObject(decompress ? PayloadCodecs.decode(reply.getPayload()) : reply.getPayload());
+            gvBuffer.setProperty("MQTT_TOPIC", locTopic);
+            gvBuffer.setProperty("MQTT_QOS", String.valueOf(reply.getQos()));
+            gvBuffer.setProperty("MQTT_IS_RETAINED", reply.isRetained() ? "Y" : "N");
+        }
+        catch (InvalidDataException exc) {
+            throw exc;
+        }
+        catch (Exception exc) {
+            throw new CallException("GV_CALL_SERVICE_ERROR", new String[][]{{"service", gvBuffer.getService()},
+                    {"system", gvBuffer.getSystem()}, {"tid", gvBuffer.getId().toString()},
+                    {"message", exc.getMessage()}}, exc);
+        }
+        return gvBuffer;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see it.greenvulcano.gvesb.virtual.Operation#cleanUp()
+     */
+    @Override
+    public void cleanUp()
+    {
+        // do nothing
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see it.greenvulcano.gvesb.virtual.Operation#destroy()
+     */
+    @Override
+    public void destroy()
+    {
+        // do nothing
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * it.greenvulcano.gvesb.virtual.Operation#getServiceAlias(it.greenvulcano
+     * .gvesb.buffer.GVBuffer)
+     */
+    @Override
+    public String getServiceAlias(GVBuffer gvBuffer)
+    {
+        return gvBuffer.getService();
+    }
+
+    /**
+     * @see it.greenvulcano.gvesb.virtual.Operation#setKey(it.greenvulcano.gvesb.virtual.OperationKey)
+     */
+    @Override
+    public void setKey(OperationKey key)
+    {
+        this.key = key;
+    }
+
+    /**
+     * @see it.greenvulcano.gvesb.virtual.Operation#getKey()
+     */
+    @Override
+    public OperationKey getKey()
+    {
+        return key;
+    }
+}
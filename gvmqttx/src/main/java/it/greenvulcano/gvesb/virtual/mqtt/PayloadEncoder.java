@@ -0,0 +1,38 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 GreenVulcano ESB Open Source Project.
+ * All rights reserved.
+ *
+ * This file is part of GreenVulcano ESB.
+ *
+ * GreenVulcano ESB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GreenVulcano ESB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with GreenVulcano ESB. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package it.greenvulcano.gvesb.virtual.mqtt;
+
+import java.nio.charset.Charset;
+
+/**
+ * Converts a GVBuffer object into the payload of a MQTT message.
+ * 
+ * Encoders are registered by object type in {@link PayloadEncoders}.
+ */
+@FunctionalInterface
+public interface PayloadEncoder
+{
+    /**
+     * @param object the GVBuffer object, never <code>null</code>
+     * @param charset the charset to use for textual content
+     * @return the message payload, callers must not modify it
+     */
+    byte[] encode(Object object, Charset charset) throws Exception;
+}
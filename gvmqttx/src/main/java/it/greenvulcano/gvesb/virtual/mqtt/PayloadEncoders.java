@@ -0,0 +1,236 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 GreenVulcano ESB Open Source Project.
+ * All rights reserved.
+ *
+ * This file is part of GreenVulcano ESB.
+ *
+ * GreenVulcano ESB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GreenVulcano ESB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with GreenVulcano ESB. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package it.greenvulcano.gvesb.virtual.mqtt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.w3c.dom.Node;
+
+/**
+ * Registry of the {@link PayloadEncoder}s used by {@link MQTTPublisherCallOperation}.
+ * 
+ * Encoders are looked up by the GVBuffer object class, then by its superclasses and interfaces.
+ * Built-in encoders cover <code>byte[]</code>, {@link String}, {@link ByteBuffer}, {@link InputStream},
+ * DOM {@link Node}s, {@link JSONObject}/{@link JSONArray} and {@link Map}s, written as JSON objects:
+ * the last ones are serialized straight into a per-thread reusable buffer, so that the only allocation
+ * is the payload itself.
+ */
+public final class PayloadEncoders
+{
+    /** buffers grown beyond this size are not kept by the thread after use */
+    private static final int MAX_RETAINED_BUFFER = 1024 * 1024;
+
+    private static final Map<Class<?>, PayloadEncoder> encoders = new ConcurrentHashMap<>();
+    private static final Map<Class<?>, Optional<PayloadEncoder>> resolved = new ConcurrentHashMap<>();
+
+    private static final ThreadLocal<PayloadBuffer> buffers = ThreadLocal.withInitial(PayloadBuffer::new);
+    private static final ThreadLocal<Transformer> transformers = ThreadLocal.withInitial(PayloadEncoders::newTransformer);
+
+    static {
+        registerEncoder(byte[].class, (object, charset) -> (byte[]) object);
+        registerEncoder(String.class, (object, charset) -> ((String) object).getBytes(charset));
+        registerEncoder(ByteBuffer.class, (object, charset) -> encode((ByteBuffer) object));
+        registerEncoder(InputStream.class, (object, charset) -> encode((InputStream) object));
+        registerEncoder(Node.class, (object, charset) -> encode((Node) object, charset));
+        registerEncoder(JSONObject.class, (object, charset) -> encode(writer -> ((JSONObject) object).write(writer), charset));
+        registerEncoder(JSONArray.class, (object, charset) -> encode(writer -> ((JSONArray) object).write(writer), charset));
+        registerEncoder(Map.class, (object, charset) -> encode(writer -> new JSONObject((Map<?, ?>) object).write(writer), charset));
+    }
+
+    private PayloadEncoders()
+    {
+        // static registry
+    }
+
+    /**
+     * Registers an encoder for the objects of the given type, replacing any previous one
+     */
+    public static void registerEncoder(Class<?> type, PayloadEncoder encoder)
+    {
+        encoders.put(type, encoder);
+        resolved.clear();
+    }
+
+    public static void unregisterEncoder(Class<?> type)
+    {
+        encoders.remove(type);
+        resolved.clear();
+    }
+
+    /**
+     * @return the encoder for the objects of the given class, if any
+     */
+    public static Optional<PayloadEncoder> getEncoder(Class<?> type)
+    {
+        return resolved.computeIfAbsent(type, PayloadEncoders::lookup);
+    }
+
+    private static Optional<PayloadEncoder> lookup(Class<?> type)
+    {
+        for (Class<?> current = type; current != null; current = current.getSuperclass()) {
+            PayloadEncoder encoder = encoders.get(current);
+            if (encoder != null) {
+                return Optional.of(encoder);
+            }
+            for (Class<?> implemented : current.getInterfaces()) {
+                Optional<PayloadEncoder> inherited = lookup(implemented);
+                if (inherited.isPresent()) {
+                    return inherited;
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+    static byte[] encode(Object object, Charset charset) throws Exception
+    {
+        PayloadEncoder encoder = getEncoder(object.getClass())
+                .orElseThrow(() -> new IllegalArgumentException("Invalid input type: " + object.getClass()));
+        return encoder.encode(object, charset);
+    }
+
+    private static byte[] encode(ByteBuffer buffer)
+    {
+        if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0 && buffer.remaining() == buffer.array().length) {
+            return buffer.array();
+        }
+        byte[] payload = new byte[buffer.remaining()];
+        buffer.duplicate().get(payload);
+        return payload;
+    }
+
+    private static byte[] encode(InputStream stream) throws Exception
+    {
+        PayloadBuffer buffer = acquireBuffer();
+        try {
+            buffer.readFrom(stream);
+            return buffer.toByteArray();
+        }
+        finally {
+            releaseBuffer(buffer);
+        }
+    }
+
+    private static byte[] encode(Node node, Charset charset) throws Exception
+    {
+        PayloadBuffer buffer = acquireBuffer();
+        Transformer transformer = transformers.get();
+        try {
+            transformer.setOutputProperty(OutputKeys.ENCODING, charset.name());
+            transformer.transform(new DOMSource(node), new StreamResult(buffer));
+            return buffer.toByteArray();
+        }
+        finally {
+            transformer.reset();
+            releaseBuffer(buffer);
+        }
+    }
+
+    private static byte[] encode(JsonWriter json, Charset charset) throws Exception
+    {
+        PayloadBuffer buffer = acquireBuffer();
+        try {
+            Writer writer = new OutputStreamWriter(buffer, charset);
+            json.write(writer);
+            writer.flush();
+            return buffer.toByteArray();
+        }
+        finally {
+            releaseBuffer(buffer);
+        }
+    }
+
+    private static PayloadBuffer acquireBuffer()
+    {
+        PayloadBuffer buffer = buffers.get();
+        buffer.reset();
+        return buffer;
+    }
+
+    private static void releaseBuffer(PayloadBuffer buffer)
+    {
+        if (buffer.capacity() > MAX_RETAINED_BUFFER) {
+            buffers.remove();
+        }
+    }
+
+    private static Transformer newTransformer()
+    {
+        try {
+            return TransformerFactory.newInstance().newTransformer();
+        }
+        catch (TransformerConfigurationException exc) {
+            throw new IllegalStateException("Cannot create XML serializer", exc);
+        }
+    }
+
+    @FunctionalInterface
+    private interface JsonWriter
+    {
+        void write(Writer writer) throws Exception;
+    }
+
+    /**
+     * Growable byte buffer reused by a thread across publications
+     */
+    private static final class PayloadBuffer extends ByteArrayOutputStream
+    {
+        PayloadBuffer()
+        {
+            super(8192);
+        }
+
+        int capacity()
+        {
+            return buf.length;
+        }
+
+        void readFrom(InputStream stream) throws Exception
+        {
+            int read;
+            do {
+                if (count == buf.length) {
+                    buf = java.util.Arrays.copyOf(buf, buf.length << 1);
+                }
+                read = stream.read(buf, count, buf.length - count);
+                if (read > 0) {
+                    count += read;
+                }
+            } while (read >= 0);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 GreenVulcano ESB Open Source Project.
+ * All rights reserved.
+ *
+ * This file is part of GreenVulcano ESB.
+ *
+ * GreenVulcano ESB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GreenVulcano ESB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with GreenVulcano ESB. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package it.greenvulcano.gvesb.virtual.mqtt;
+
+import it.greenvulcano.gvesb.channel.mqtt.LatencyHistogram;
+import it.greenvulcano.gvesb.channel.mqtt.MetricsRegistry;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+/**
+ * Metrics shared by the pooled instances of an operation: they are registered when the first instance
+ * is initialized and unregistered when the last one is destroyed.
+ */
+final class PublisherMetrics implements PublisherMetricsMBean
+{
+    /** guarded by itself */
+    private static final Map<String, PublisherMetrics> metrics = new HashMap<>();
+
+    private final String           key;
+    private final String[]         keys;
+    private ObjectName             objectName;
+    private int                    users;
+
+    final LongAdder                delivered      = new LongAdder();
+    final LongAdder                stored         = new LongAdder();
+    final LongAdder                failed         = new LongAdder();
+    final LatencyHistogram         encodeLatency  = new LatencyHistogram();
+    final LatencyHistogram         publishLatency = new LatencyHistogram();
+    final LatencyHistogram         ackLatency     = new LatencyHistogram();
+
+    /**
+     * @param name the operation name, the ack latency depends on the QoS so it is part of the metrics name as well
+     */
+    static PublisherMetrics acquire(String system, String channel, String name, int qos)
+    {
+        String key = system + "/" + channel + "/" + name + "/" + qos;
+        synchronized (metrics) {
+            PublisherMetrics publisherMetrics = metrics.computeIfAbsent(key, k -> new PublisherMetrics(k, new String[]{"Publisher",
+                    "system", system, "channel", channel, "operation", name, "qos", String.valueOf(qos)}));
+            if (publisherMetrics.users++ == 0) {
+                publisherMetrics.objectName = MetricsRegistry.register(publisherMetrics, PublisherMetricsMBean.class, publisherMetrics.keys);
+            }
+            return publisherMetrics;
+        }
+    }
+
+    private PublisherMetrics(String key, String[] keys)
+    {
+        this.key = key;
+        this.keys = keys;
+    }
+
+    void release()
+    {
+        synchronized (metrics) {
+            if (users > 0 && --users == 0) {
+                MetricsRegistry.unregister(objectName);
+                objectName = null;
+                metrics.remove(key, this);
+            }
+        }
+    }
+
+    @Override
+    public long getDelivered()
+    {
+        return delivered.sum();
+    }
+
+    @Override
+    public long getStored()
+    {
+        return stored.sum();
+    }
+
+    @Override
+    public long getFailed()
+    {
+        return failed.sum();
+    }
+
+    @Override
+    public double getEncodeMeanMicros()
+    {
+        return encodeLatency.getMean();
+    }
+
+    @Override
+    public long getEncodeP99Micros()
+    {
+        return encodeLatency.getPercentile(99);
+    }
+
+    @Override
+    public double getPublishMeanMicros()
+    {
+        return publishLatency.getMean();
+    }
+
+    @Override
+    public long getPublishP50Micros()
+    {
+        return publishLatency.getPercentile(50);
+    }
+
+    @Override
+    public long getPublishP99Micros()
+    {
+        return publishLatency.getPercentile(99);
+    }
+
+    @Override
+    public long getPublishMaxMicros()
+    {
+        return publishLatency.getMax();
+    }
+
+    @Override
+    public double getAckMeanMicros()
+    {
+        return ackLatency.getMean();
+    }
+
+    @Override
+    public long getAckP50Micros()
+    {
+        return ackLatency.getPercentile(50);
+    }
+
+    @Override
+    public long getAckP99Micros()
+    {
+        return ackLatency.getPercentile(99);
+    }
+
+    @Override
+    public long getAckMaxMicros()
+    {
+        return ackLatency.getMax();
+    }
+}
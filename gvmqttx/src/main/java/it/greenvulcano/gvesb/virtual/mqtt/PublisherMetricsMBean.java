@@ -0,0 +1,62 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 GreenVulcano ESB Open Source Project.
+ * All rights reserved.
+ *
+ * This file is part of GreenVulcano ESB.
+ *
+ * GreenVulcano ESB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GreenVulcano ESB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with GreenVulcano ESB. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package it.greenvulcano.gvesb.virtual.mqtt;
+
+/**
+ * Metrics of the <code>mqtt-publish-call</code> operations sharing the same configuration;
+ * latencies are in microseconds.
+ */
+public interface PublisherMetricsMBean
+{
+    /**
+     * @return the messages acknowledged by the broker, according to the QoS
+     */
+    long getDelivered();
+
+    long getStored();
+
+    long getFailed();
+
+    double getEncodeMeanMicros();
+
+    long getEncodeP99Micros();
+
+    /**
+     * @return the mean time spent by the calling thread in the operation
+     */
+    double getPublishMeanMicros();
+
+    long getPublishP50Micros();
+
+    long getPublishP99Micros();
+
+    long getPublishMaxMicros();
+
+    /**
+     * @return the mean time from the publication to the broker acknowledge
+     */
+    double getAckMeanMicros();
+
+    long getAckP50Micros();
+
+    long getAckP99Micros();
+
+    long getAckMaxMicros();
+}
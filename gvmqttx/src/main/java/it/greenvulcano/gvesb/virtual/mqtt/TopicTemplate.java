@@ -0,0 +1,173 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 GreenVulcano ESB Open Source Project.
+ * All rights reserved.
+ *
+ * This file is part of GreenVulcano ESB.
+ *
+ * GreenVulcano ESB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GreenVulcano ESB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with GreenVulcano ESB. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package it.greenvulcano.gvesb.virtual.mqtt;
+
+import it.greenvulcano.gvesb.buffer.GVBuffer;
+import it.greenvulcano.gvesb.internal.data.GVBufferPropertiesHelper;
+import it.greenvulcano.util.metadata.PropertiesHandler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+/**
+ * A <code>topic</code> template compiled once and shared by all the operations using it.
+ * 
+ * Templates without placeholders resolve to a constant; templates made only of GVBuffer property
+ * placeholders (<code>@{{NAME}}</code>) are split in literal and property segments and resolved
+ * reading just the referenced properties. Any other placeholder falls back to
+ * {@link PropertiesHandler#expand(String, Map, Object)} on the whole properties map.
+ */
+final class TopicTemplate
+{
+    private static final ConcurrentMap<String, TopicTemplate> templates = new ConcurrentHashMap<>();
+
+    private static final String PLACEHOLDER_START = "{{";
+    private static final String PLACEHOLDER_END   = "}}";
+
+    private final String   template;
+    private final String   constant;
+    private final String[] literals;
+    private final String[] properties;
+    private final boolean  generic;
+
+    static TopicTemplate compile(String template)
+    {
+        return templates.computeIfAbsent(template, TopicTemplate::new);
+    }
+
+    private TopicTemplate(String template)
+    {
+        this.template = template;
+
+        List<String> literalList = new ArrayList<>();
+        List<String> propertyList = new ArrayList<>();
+        boolean simple = true;
+
+        int start = 0;
+        int open = template.indexOf(PLACEHOLDER_START);
+        while (open >= 0) {
+            int close = template.indexOf(PLACEHOLDER_END, open);
+            int next = template.indexOf(PLACEHOLDER_START, open + PLACEHOLDER_START.length());
+            // only non nested GVBuffer properties can be resolved directly
+            if (open == 0 || template.charAt(open - 1) != '@' || close < 0 || (next >= 0 && next < close)) {
+                simple = false;
+                break;
+            }
+            literalList.add(template.substring(start, open - 1));
+            propertyList.add(template.substring(open + PLACEHOLDER_START.length(), close));
+            start = close + PLACEHOLDER_END.length();
+            open = template.indexOf(PLACEHOLDER_START, start);
+        }
+        literalList.add(template.substring(start));
+
+        generic = !simple;
+        constant = simple && propertyList.isEmpty() ? template : null;
+        literals = literalList.toArray(new String[literalList.size()]);
+        properties = propertyList.toArray(new String[propertyList.size()]);
+    }
+
+    /**
+     * @return the topic resolved against the GVBuffer
+     */
+    String resolve(GVBuffer gvBuffer) throws Exception
+    {
+        return resolve(gvBuffer, name -> null);
+    }
+
+    /**
+     * Resolves the topic binding a property to the given value, in place of the GVBuffer one;
+     * templates with other placeholders are expanded on a copy of the GVBuffer properties holding the binding
+     */
+    String resolve(GVBuffer gvBuffer, String property, String value) throws Exception
+    {
+        if (generic) {
+            Map<String, Object> params = new HashMap<>(GVBufferPropertiesHelper.getPropertiesMapSO(gvBuffer, true));
+            params.put(property, value);
+            return PropertiesHandler.expand(template, params, gvBuffer);
+        }
+        return resolve(gvBuffer, name -> property.equals(name) ? value : null);
+    }
+
+    /**
+     * Resolves the topic looking up the property placeholders first through the given function,
+     * then among the GVBuffer properties; templates with other placeholders are resolved only against the GVBuffer
+     */
+    String resolve(GVBuffer gvBuffer, Function<String, String> lookup) throws Exception
+    {
+        if (constant != null) {
+            return constant;
+        }
+
+        if (generic) {
+            Map<String, Object> params = GVBufferPropertiesHelper.getPropertiesMapSO(gvBuffer, true);
+            return PropertiesHandler.expand(template, params, gvBuffer);
+        }
+
+        StringBuilder topic = new StringBuilder(template.length() + 16);
+        for (int i = 0; i < properties.length; i++) {
+            topic.append(literals[i]);
+            String value = lookup.apply(properties[i]);
+            if (value == null) {
+                value = gvBuffer.getProperty(properties[i]);
+            }
+            // unresolved placeholders are left in place, as PropertiesHandler does
+            topic.append(value != null ? value : "@" + PLACEHOLDER_START + properties[i] + PLACEHOLDER_END);
+        }
+        topic.append(literals[properties.length]);
+
+        return topic.toString();
+    }
+
+    /**
+     * Splits a comma separated list of templates, ignoring the commas inside the placeholders
+     * (e.g. the arguments of a <code>js{{...}}</code> or <code>xpath{{...}}</code> expression)
+     */
+    static List<String> split(String templates)
+    {
+        List<String> result = new ArrayList<>();
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i < templates.length(); i++) {
+            if (templates.startsWith(PLACEHOLDER_START, i)) {
+                depth++;
+                i++;
+            } else if (depth > 0 && templates.startsWith(PLACEHOLDER_END, i)) {
+                depth--;
+                i++;
+            } else if (depth == 0 && templates.charAt(i) == ',') {
+                result.add(templates.substring(start, i));
+                start = i + 1;
+            }
+        }
+        result.add(templates.substring(start));
+        return result;
+    }
+
+    @Override
+    public String toString()
+    {
+        return template;
+    }
+}
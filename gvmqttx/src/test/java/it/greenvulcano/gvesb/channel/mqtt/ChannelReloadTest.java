@@ -0,0 +1,198 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 GreenVulcano ESB Open Source Project.
+ * All rights reserved.
+ *
+ * This file is part of GreenVulcano ESB.
+ *
+ * GreenVulcano ESB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GreenVulcano ESB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with GreenVulcano ESB. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package it.greenvulcano.gvesb.channel.mqtt;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * A channel rebuilt on reload takes over the QoS 1 messages left in flight by the channel it replaces
+ */
+public class ChannelReloadTest {
+
+	private static final byte[] PAYLOAD = "in flight".getBytes(StandardCharsets.UTF_8);
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	private MqttChannel channel(ScriptedBroker broker, Path persistenceDirectory) throws MqttException {
+		// the running channel must not reconnect on its own once the broker drops it
+		return new MqttChannel("tcp", "127.0.0.1", broker.getPort(), null, null, "reload", "test", "test/reload",
+							   false, 10, 1, null, () -> PersistenceMode.MAPPED.create(persistenceDirectory), new ReconnectPolicy(60000, 60000, 1000));
+	}
+
+	@Test
+	public void testInFlightMessageRedeliveredByRebuiltChannel() throws Exception {
+		Path persistenceDirectory = folder.getRoot().toPath();
+		try (ScriptedBroker broker = new ScriptedBroker()) {
+			MqttChannel running = channel(broker, persistenceDirectory);
+			running.start().get(5, TimeUnit.SECONDS);
+			// as on reload, the new channel is built before the running one is dismissed
+			MqttChannel rebuilt = channel(broker, persistenceDirectory);
+			try {
+				CompletableFuture<IMqttDeliveryToken> delivery = running.publishAsync("devices/1", PAYLOAD, 1);
+				Publish sent = broker.published.poll(10, TimeUnit.SECONDS);
+				assertNotNull("Message not published", sent);
+				assertArrayEquals(PAYLOAD, sent.payload);
+
+				long deadline = System.currentTimeMillis() + 10000;
+				while (running.isConnected()) {
+					assertTrue("Connection not lost", System.currentTimeMillis() < deadline);
+					Thread.sleep(10);
+				}
+				assertFalse(delivery.isDone());
+			} finally {
+				running.dismiss();
+			}
+
+			try {
+				rebuilt.start().get(5, TimeUnit.SECONDS);
+				Publish redelivered = broker.published.poll(10, TimeUnit.SECONDS);
+				assertNotNull("In-flight message not redelivered by the rebuilt channel", redelivered);
+				assertArrayEquals(PAYLOAD, redelivered.payload);
+				assertTrue(redelivered.duplicate);
+			} finally {
+				rebuilt.dismiss();
+			}
+		}
+	}
+
+	private static final class Publish {
+		private final byte[] payload;
+		private final boolean duplicate;
+
+		Publish(byte[] payload, boolean duplicate) {
+			this.payload = payload;
+			this.duplicate = duplicate;
+		}
+	}
+
+	/**
+	 * Minimal MQTT 3.1.1 broker: the first connection is dropped as soon as it publishes, leaving the message
+	 * unacknowledged, while the next ones have their QoS 1 messages acknowledged
+	 */
+	private static final class ScriptedBroker implements AutoCloseable {
+
+		private final ServerSocket server;
+		private final AtomicInteger connections = new AtomicInteger();
+		private final BlockingQueue<Publish> published = new LinkedBlockingQueue<>();
+
+		ScriptedBroker() throws IOException {
+			server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+			Thread acceptor = new Thread(() -> {
+				while (!server.isClosed()) {
+					try {
+						Socket socket = server.accept();
+						Thread connection = new Thread(() -> serve(socket, connections.incrementAndGet()));
+						connection.setDaemon(true);
+						connection.start();
+					} catch (IOException e) {
+						// closed
+					}
+				}
+			});
+			acceptor.setDaemon(true);
+			acceptor.start();
+		}
+
+		int getPort() {
+			return server.getLocalPort();
+		}
+
+		private void serve(Socket socket, int connection) {
+			try (Socket client = socket) {
+				DataInputStream in = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+				OutputStream out = client.getOutputStream();
+				int header;
+				while ((header = in.read()) >= 0) {
+					int length = 0;
+					int shift = 0;
+					int digit;
+					do {
+						digit = in.readUnsignedByte();
+						length |= (digit & 0x7f) << shift;
+						shift += 7;
+					} while ((digit & 0x80) != 0);
+					byte[] body = new byte[length];
+					in.readFully(body);
+
+					switch (header >> 4) {
+						case 1: // CONNECT
+							out.write(new byte[] { 0x20, 2, 0, 0 });
+							break;
+						case 3: // PUBLISH
+							ByteBuffer packet = ByteBuffer.wrap(body);
+							packet.position(2 + packet.getShort());
+							int qos = (header >> 1) & 3;
+							int messageId = qos > 0 ? packet.getShort() & 0xffff : 0;
+							byte[] payload = new byte[packet.remaining()];
+							packet.get(payload);
+							published.add(new Publish(payload, (header & 0x08) != 0));
+							if (connection == 1) {
+								return;
+							}
+							if (qos == 1) {
+								out.write(new byte[] { 0x40, 2, (byte) (messageId >> 8), (byte) messageId });
+							}
+							break;
+						case 12: // PINGREQ
+							out.write(new byte[] { (byte) 0xd0, 0 });
+							break;
+						case 14: // DISCONNECT
+							return;
+						default:
+					}
+					out.flush();
+				}
+			} catch (IOException e) {
+				// connection closed by the client
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			server.close();
+		}
+	}
+}
@@ -0,0 +1,135 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 GreenVulcano ESB Open Source Project.
+ * All rights reserved.
+ *
+ * This file is part of GreenVulcano ESB.
+ *
+ * GreenVulcano ESB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GreenVulcano ESB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with GreenVulcano ESB. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package it.greenvulcano.gvesb.channel.mqtt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * The filter keeps the identities seen within the window, evicting the oldest ones when full
+ */
+public class DuplicateFilterTest {
+
+	private static final long WINDOW = 60_000;
+
+	@Test
+	public void testRepeatedIdentity() {
+		DuplicateFilter filter = new DuplicateFilter(10, WINDOW);
+		assertFalse(filter.isDuplicate(42));
+		assertTrue(filter.isDuplicate(42));
+		assertFalse(filter.isDuplicate(43));
+		assertEquals(2, filter.size());
+	}
+
+	@Test
+	public void testRingEvictsOldest() {
+		DuplicateFilter filter = new DuplicateFilter(3, WINDOW);
+		for (long key = 1; key <= 4; key++) {
+			assertFalse(filter.isDuplicate(key));
+		}
+		assertEquals(3, filter.size());
+		assertTrue(filter.isDuplicate(2));
+		assertTrue(filter.isDuplicate(3));
+		assertTrue(filter.isDuplicate(4));
+		// a duplicate does not refresh the identity: 2 is still the oldest and is evicted by 1
+		assertFalse(filter.isDuplicate(1));
+		assertFalse(filter.isDuplicate(2));
+	}
+
+	@Test
+	public void testRemovalShiftsBackCollidingKeys() {
+		// capacity 4 uses 8 slots: 1, 9 and 17 share the home slot 1, 2 probes past them
+		DuplicateFilter filter = new DuplicateFilter(4, WINDOW);
+		for (long key : new long[] { 1, 9, 17, 2 }) {
+			assertFalse(filter.isDuplicate(key));
+		}
+		// evicts 1 from the head of the probe sequence, leaving its slot to the keys after it
+		assertFalse(filter.isDuplicate(5));
+		assertTrue(filter.isDuplicate(9));
+		assertTrue(filter.isDuplicate(17));
+		assertTrue(filter.isDuplicate(2));
+		assertTrue(filter.isDuplicate(5));
+		assertFalse(filter.isDuplicate(1));
+	}
+
+	@Test
+	public void testRemovalShiftsBackAcrossTableEnd() {
+		// 7, 15 and 23 share the last slot and wrap to the first ones, 8 probes past them
+		DuplicateFilter filter = new DuplicateFilter(4, WINDOW);
+		for (long key : new long[] { 7, 15, 23, 8 }) {
+			assertFalse(filter.isDuplicate(key));
+		}
+		assertFalse(filter.isDuplicate(4));
+		assertTrue(filter.isDuplicate(15));
+		assertTrue(filter.isDuplicate(23));
+		assertTrue(filter.isDuplicate(8));
+		assertTrue(filter.isDuplicate(4));
+		assertFalse(filter.isDuplicate(7));
+	}
+
+	@Test
+	public void testMatchesFifoModel() {
+		int capacity = 64;
+		DuplicateFilter filter = new DuplicateFilter(capacity, WINDOW);
+		Deque<Long> order = new ArrayDeque<>();
+		Set<Long> retained = new HashSet<>();
+
+		Random random = new Random(7);
+		for (int i = 0; i < 200_000; i++) {
+			// few distinct keys, most of them colliding on the 128 slots of the table
+			long key = random.nextInt(48) * 128L + random.nextInt(4);
+			boolean expected = retained.contains(key);
+			if (!expected) {
+				if (order.size() == capacity) {
+					retained.remove(order.removeFirst());
+				}
+				order.addLast(key);
+				retained.add(key);
+			}
+			assertEquals("key " + key + " at " + i, expected, filter.isDuplicate(key));
+		}
+		assertEquals(capacity, filter.size());
+	}
+
+	@Test
+	public void testIdentitiesExpire() throws InterruptedException {
+		DuplicateFilter filter = new DuplicateFilter(10, 20);
+		assertFalse(filter.isDuplicate(1));
+		assertFalse(filter.isDuplicate(2));
+		Thread.sleep(60);
+		assertFalse(filter.isDuplicate(1));
+		assertEquals(1, filter.size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidCapacity() {
+		new DuplicateFilter(0, WINDOW);
+	}
+
+}
@@ -0,0 +1,81 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 GreenVulcano ESB Open Source Project.
+ * All rights reserved.
+ *
+ * This file is part of GreenVulcano ESB.
+ *
+ * GreenVulcano ESB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GreenVulcano ESB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with GreenVulcano ESB. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package it.greenvulcano.gvesb.channel.mqtt;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Stream;
+
+import com.hivemq.embedded.EmbeddedHiveMQ;
+
+/**
+ * In-memory HiveMQ CE broker listening on a free loopback port.
+ * It supports shared subscriptions for MQTT 3.1.1 clients, unlike the Moquette releases published on Maven Central
+ */
+class EmbeddedBroker implements AutoCloseable {
+
+	private final Path folder;
+	private final EmbeddedHiveMQ hivemq;
+	private final int port;
+	
+	EmbeddedBroker() throws IOException, InterruptedException, ExecutionException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			port = socket.getLocalPort();
+		}
+		folder = Files.createTempDirectory("hivemq");
+		Path configuration = Files.createDirectory(folder.resolve("conf"));
+		Files.write(configuration.resolve("config.xml"), ("<hivemq>"
+				+ "<listeners><tcp-listener><port>" + port + "</port><bind-address>127.0.0.1</bind-address></tcp-listener></listeners>"
+				+ "<persistence><mode>in-memory</mode></persistence>"
+				+ "<anonymous-usage-statistics><enabled>false</enabled></anonymous-usage-statistics>"
+				+ "</hivemq>").getBytes(StandardCharsets.UTF_8));
+		
+		hivemq = EmbeddedHiveMQ.builder()
+							   .withConfigurationFolder(configuration)
+							   .withDataFolder(Files.createDirectory(folder.resolve("data")))
+							   .withExtensionsFolder(Files.createDirectory(folder.resolve("extensions")))
+							   .build();
+		hivemq.start().get();
+	}
+	
+	String getEndpoint() {
+		return "tcp://127.0.0.1:" + port;
+	}
+	
+	int getPort() {
+		return port;
+	}
+	
+	@Override
+	public void close() throws Exception {
+		try {
+			hivemq.close();
+		} finally {
+			try (Stream<Path> files = Files.walk(folder)) {
+				files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+			}
+		}
+	}
+}
@@ -0,0 +1,299 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 GreenVulcano ESB Open Source Project.
+ * All rights reserved.
+ *
+ * This file is part of GreenVulcano ESB.
+ *
+ * GreenVulcano ESB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GreenVulcano ESB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with GreenVulcano ESB. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package it.greenvulcano.gvesb.channel.mqtt;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Messages overflowing the queue are spilled to disk, forwarded in arrival order and recovered after a restart
+ */
+public class InboundQueueTest {
+
+	private static final int MESSAGES = 50;
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	private Path spillDirectory;
+
+	@Before
+	public void setUp() {
+		spillDirectory = folder.getRoot().toPath().resolve("spill");
+	}
+
+	private static MqttMessage message(int index) {
+		MqttMessage message = new MqttMessage(("payload-" + index).getBytes(StandardCharsets.UTF_8)) {
+			{
+				setDuplicate(index % 3 == 0);
+			}
+		};
+		message.setQos(1 + index % 2);
+		message.setRetained(index % 5 == 0);
+		return message;
+	}
+
+	private static String topic(int index) {
+		return "devices/\u00e8/" + index;
+	}
+
+	private static void assertMessage(int index, Received received) {
+		MqttMessage expected = message(index);
+		assertEquals(topic(index), received.topic);
+		assertArrayEquals(expected.getPayload(), received.message.getPayload());
+		assertEquals(expected.getQos(), received.message.getQos());
+		assertEquals(expected.isRetained(), received.message.isRetained());
+		assertEquals(expected.isDuplicate(), received.message.isDuplicate());
+	}
+
+	@Test
+	public void testSpilledMessagesKeepArrivalOrder() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		Recorder recorder = new Recorder(MESSAGES, release);
+		InboundQueue queue = new InboundQueue("test", 1, Long.MAX_VALUE, InboundQueue.Overflow.SPILL, spillDirectory, recorder);
+		try {
+			for (int i = 0; i < MESSAGES; i++) {
+				queue.offer(topic(i), message(i));
+			}
+			assertTrue(queue.getSpilled() >= MESSAGES - 2);
+			assertEquals(0, queue.getDropped());
+
+			release.countDown();
+			assertTrue(recorder.done.await(10, TimeUnit.SECONDS));
+			for (int i = 0; i < MESSAGES; i++) {
+				assertMessage(i, recorder.received.get(i));
+			}
+		} finally {
+			queue.stop();
+		}
+	}
+
+	@Test
+	public void testSpilledMessagesRecoveredAfterRestart() throws Exception {
+		// the consumer holds the first message until the queue is stopped
+		InboundQueue queue = new InboundQueue("test", 1, Long.MAX_VALUE, InboundQueue.Overflow.SPILL, spillDirectory, new Recorder(MESSAGES, new CountDownLatch(1)));
+		for (int i = 0; i < MESSAGES; i++) {
+			queue.offer(topic(i), message(i));
+		}
+		int spilled = (int) queue.getSpilled();
+		queue.stop();
+
+		Recorder recorder = new Recorder(spilled, null);
+		InboundQueue recovered = new InboundQueue("test", 1, Long.MAX_VALUE, InboundQueue.Overflow.SPILL, spillDirectory, recorder);
+		try {
+			assertTrue(recorder.done.await(10, TimeUnit.SECONDS));
+			assertEquals(spilled, recorder.received.size());
+			for (int i = 0; i < spilled; i++) {
+				assertMessage(MESSAGES - spilled + i, recorder.received.get(i));
+			}
+		} finally {
+			recovered.stop();
+		}
+	}
+
+	@Test
+	public void testInterruptedForwardIsRecovered() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		InboundQueue queue = new InboundQueue("test", 1, Long.MAX_VALUE, InboundQueue.Overflow.SPILL, spillDirectory, new Recorder(MESSAGES, release));
+		for (int i = 0; i < MESSAGES; i++) {
+			queue.offer(topic(i), message(i));
+		}
+		int spilled = (int) queue.getSpilled();
+		queue.stop();
+
+		// forwards part of the spilled messages, stopping while the eleventh is forwarded
+		Recorder partial = new Recorder(10, new CountDownLatch(1));
+		partial.holdAt = 10;
+		InboundQueue interrupted = new InboundQueue("test", 1, Long.MAX_VALUE, InboundQueue.Overflow.SPILL, spillDirectory, partial);
+		assertTrue(partial.done.await(10, TimeUnit.SECONDS));
+		interrupted.stop();
+
+		// the messages not forwarded, including the interrupted one, are forwarded again
+		Recorder recorder = new Recorder(spilled - 10, null);
+		InboundQueue recovered = new InboundQueue("test", 1, Long.MAX_VALUE, InboundQueue.Overflow.SPILL, spillDirectory, recorder);
+		try {
+			assertTrue(recorder.done.await(10, TimeUnit.SECONDS));
+			for (int i = 0; i < spilled - 10; i++) {
+				assertMessage(MESSAGES - spilled + 10 + i, recorder.received.get(i));
+			}
+		} finally {
+			recovered.stop();
+		}
+	}
+
+	@Test
+	public void testDropPolicies() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		Recorder newest = new Recorder(2, release);
+		InboundQueue dropNewest = new InboundQueue("newest", 1, Long.MAX_VALUE, InboundQueue.Overflow.DROP_NEWEST, null, newest);
+		Recorder oldest = new Recorder(2, release);
+		InboundQueue dropOldest = new InboundQueue("oldest", 1, Long.MAX_VALUE, InboundQueue.Overflow.DROP_OLDEST, null, oldest);
+		try {
+			// the first message is taken by the consumer, the second one queued
+			for (InboundQueue queue : new InboundQueue[] { dropNewest, dropOldest }) {
+				queue.offer(topic(0), message(0));
+				Recorder recorder = queue == dropNewest ? newest : oldest;
+				assertTrue(recorder.started.await(10, TimeUnit.SECONDS));
+				for (int i = 1; i < 4; i++) {
+					queue.offer(topic(i), message(i));
+				}
+				assertEquals(2, queue.getDropped());
+			}
+
+			release.countDown();
+			assertTrue(newest.done.await(10, TimeUnit.SECONDS));
+			assertTrue(oldest.done.await(10, TimeUnit.SECONDS));
+			assertMessage(1, newest.received.get(1));
+			assertMessage(3, oldest.received.get(1));
+		} finally {
+			dropNewest.stop();
+			dropOldest.stop();
+		}
+	}
+
+	@Test
+	public void testQueueBytesCountEncodedTopic() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		Recorder recorder = new Recorder(2, release);
+		// room for two messages whose topic is counted in characters, not in UTF-8 bytes
+		int size = topic(1).length() + message(1).getPayload().length;
+		InboundQueue queue = new InboundQueue("bytes", 100, 2 * size, InboundQueue.Overflow.DROP_NEWEST, null, recorder);
+		try {
+			queue.offer(topic(0), message(0));
+			assertTrue(recorder.started.await(10, TimeUnit.SECONDS));
+			queue.offer(topic(1), message(1));
+			queue.offer(topic(2), message(2));
+			assertEquals(1, queue.getDropped());
+		} finally {
+			release.countDown();
+			queue.stop();
+		}
+	}
+
+	@Test
+	public void testOfferAfterStop() throws Exception {
+		for (InboundQueue.Overflow overflow : InboundQueue.Overflow.values()) {
+			Recorder recorder = new Recorder(1, null);
+			InboundQueue queue = new InboundQueue(overflow.name(), 1, Long.MAX_VALUE, overflow, spillDirectory, recorder);
+			queue.stop();
+			queue.offer(topic(0), message(0));
+			assertEquals(overflow.name(), 1, queue.getDropped());
+			assertEquals(overflow.name(), 0, queue.getSpilled());
+			assertTrue(overflow.name(), recorder.received.isEmpty());
+		}
+
+		// nothing was appended to the closed spill journal
+		InboundQueue recovered = new InboundQueue("recovered", 1, Long.MAX_VALUE, InboundQueue.Overflow.SPILL, spillDirectory, new Recorder(1, null));
+		try {
+			assertEquals(0, recovered.size());
+		} finally {
+			recovered.stop();
+		}
+	}
+
+	@Test
+	public void testBlockedOfferDroppedOnStop() throws Exception {
+		Recorder recorder = new Recorder(1, new CountDownLatch(1));
+		InboundQueue queue = new InboundQueue("block", 1, Long.MAX_VALUE, InboundQueue.Overflow.BLOCK, null, recorder);
+		queue.offer(topic(0), message(0));
+		assertTrue(recorder.started.await(10, TimeUnit.SECONDS));
+		queue.offer(topic(1), message(1));
+
+		Thread blocked = new Thread(() -> {
+			try {
+				queue.offer(topic(2), message(2));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		blocked.start();
+		while (blocked.getState() != Thread.State.WAITING) {
+			assertTrue(blocked.isAlive());
+			Thread.sleep(10);
+		}
+
+		queue.stop();
+		blocked.join(10000);
+		assertFalse(blocked.isAlive());
+		assertEquals(1, queue.getDropped());
+		assertEquals(0, queue.size());
+		assertTrue(recorder.received.isEmpty());
+	}
+
+	@Test
+	public void testUtf8Length() {
+		for (String topic : new String[] { "", "a/b", topic(1), "\u20ac/\u0800", "sensor/\ud83d\ude00/x" }) {
+			assertEquals(topic, topic.getBytes(StandardCharsets.UTF_8).length, InboundQueue.utf8Length(topic));
+		}
+	}
+
+	private static final class Received {
+		private final String topic;
+		private final MqttMessage message;
+
+		Received(String topic, MqttMessage message) {
+			this.topic = topic;
+			this.message = message;
+		}
+	}
+
+	/**
+	 * Records the messages, holding the first one (or the one at <code>holdAt</code>) until released
+	 */
+	private static final class Recorder implements InboundQueue.Consumer {
+		private final List<Received> received = new ArrayList<>();
+		private final CountDownLatch started = new CountDownLatch(1);
+		private final CountDownLatch done;
+		private final CountDownLatch release;
+		private int holdAt;
+
+		Recorder(int expected, CountDownLatch release) {
+			this.done = new CountDownLatch(expected);
+			this.release = release;
+		}
+
+		@Override
+		public void accept(String topic, MqttMessage message) throws InterruptedException {
+			started.countDown();
+			if (release != null && received.size() == holdAt) {
+				release.await();
+			}
+			received.add(new Received(topic, message));
+			done.countDown();
+		}
+	}
+
+}
@@ -0,0 +1,207 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 GreenVulcano ESB Open Source Project.
+ * All rights reserved.
+ *
+ * This file is part of GreenVulcano ESB.
+ *
+ * GreenVulcano ESB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GreenVulcano ESB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with GreenVulcano ESB. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package it.greenvulcano.gvesb.channel.mqtt;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * The journal is a FIFO of records surviving a reopen, with the torn records at the end discarded
+ */
+public class SegmentJournalTest {
+
+	/** record length and checksum, as written by the journal */
+	private static final int RECORD_HEADER = 8;
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	private Path directory;
+	private SegmentJournal journal;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = folder.getRoot().toPath().resolve("journal");
+		journal = new SegmentJournal(directory, 256);
+	}
+
+	@After
+	public void tearDown() {
+		journal.close();
+	}
+
+	private static byte[] record(int index) {
+		return String.format("record-%04d", index).getBytes(StandardCharsets.UTF_8);
+	}
+
+	private void append(int from, int to) throws IOException {
+		for (int i = from; i < to; i++) {
+			journal.append(record(i));
+		}
+	}
+
+	private void assertRecords(int from, int to, SegmentJournal.Batch batch) {
+		assertEquals(to - from, batch.records.size());
+		for (int i = from; i < to; i++) {
+			assertArrayEquals(record(i), batch.records.get(i - from));
+		}
+	}
+
+	private SegmentJournal reopen() throws IOException {
+		journal.close();
+		journal = new SegmentJournal(directory, 256);
+		return journal;
+	}
+
+	private List<Path> segments() throws IOException {
+		List<Path> segments = new ArrayList<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.seg")) {
+			files.forEach(segments::add);
+		}
+		segments.sort(null);
+		return segments;
+	}
+
+	@Test
+	public void testPeekDoesNotConsume() throws IOException {
+		append(0, 5);
+		assertRecords(0, 3, journal.peek(3));
+		assertRecords(0, 5, journal.peek(10));
+		assertEquals(5, journal.size());
+		assertEquals(5 * record(0).length, journal.bytes());
+	}
+
+	@Test
+	public void testCommitConsumesPrefix() throws IOException {
+		append(0, 5);
+		SegmentJournal.Batch batch = journal.peek(4);
+		journal.commit(batch, 2);
+		assertEquals(3, journal.size());
+		assertRecords(2, 5, journal.peek(10));
+
+		journal.commit(journal.peek(10), 3);
+		assertTrue(journal.isEmpty());
+		assertEquals(0, journal.bytes());
+		assertTrue(journal.peek(10).records.isEmpty());
+	}
+
+	@Test
+	public void testDropOldest() throws IOException {
+		append(0, 2);
+		assertTrue(journal.dropOldest());
+		assertRecords(1, 2, journal.peek(10));
+		assertTrue(journal.dropOldest());
+		assertFalse(journal.dropOldest());
+	}
+
+	@Test
+	public void testRecordsSpanSegments() throws IOException {
+		// 13 records of 19 bytes fit in a segment of 256 bytes
+		append(0, 40);
+		assertEquals(4, segments().size());
+		assertRecords(0, 40, journal.peek(100));
+
+		journal.commit(journal.peek(30), 30);
+		assertEquals("consumed segments are deleted", 2, segments().size());
+		assertRecords(30, 40, journal.peek(100));
+	}
+
+	@Test
+	public void testRecordLargerThanSegment() throws IOException {
+		byte[] large = new byte[1000];
+		large[999] = 1;
+		append(0, 1);
+		journal.append(large);
+		append(1, 2);
+		SegmentJournal.Batch batch = journal.peek(10);
+		assertEquals(3, batch.records.size());
+		assertArrayEquals(large, batch.records.get(1));
+		assertArrayEquals(record(1), batch.records.get(2));
+	}
+
+	@Test
+	public void testReopenRecoversHeadAndRecords() throws IOException {
+		append(0, 40);
+		journal.commit(journal.peek(17), 17);
+
+		reopen();
+		assertEquals(23, journal.size());
+		assertEquals(23 * record(0).length, journal.bytes());
+		assertRecords(17, 40, journal.peek(100));
+
+		append(40, 45);
+		assertRecords(17, 45, journal.peek(100));
+	}
+
+	@Test
+	public void testReopenEmptyJournal() throws IOException {
+		append(0, 5);
+		journal.commit(journal.peek(5), 5);
+
+		reopen();
+		assertTrue(journal.isEmpty());
+		append(5, 6);
+		assertRecords(5, 6, journal.peek(10));
+	}
+
+	@Test
+	public void testReopenDiscardsTornRecord() throws IOException {
+		append(0, 5);
+		journal.close();
+
+		// corrupts the payload of the fourth record, as a write interrupted by a crash
+		int length = record(0).length;
+		try (FileChannel channel = FileChannel.open(segments().get(0), StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.wrap(new byte[] { 'X' }), 3 * (RECORD_HEADER + length) + RECORD_HEADER);
+		}
+
+		reopen();
+		assertEquals(3, journal.size());
+		assertRecords(0, 3, journal.peek(10));
+
+		// new records replace the torn one
+		append(5, 7);
+		reopen();
+		SegmentJournal.Batch batch = journal.peek(10);
+		assertEquals(5, batch.records.size());
+		assertArrayEquals(record(5), batch.records.get(3));
+		assertArrayEquals(record(6), batch.records.get(4));
+	}
+
+}
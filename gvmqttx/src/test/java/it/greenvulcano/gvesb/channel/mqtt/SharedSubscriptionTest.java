@@ -0,0 +1,156 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 GreenVulcano ESB Open Source Project.
+ * All rights reserved.
+ *
+ * This file is part of GreenVulcano ESB.
+ *
+ * GreenVulcano ESB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GreenVulcano ESB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with GreenVulcano ESB. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package it.greenvulcano.gvesb.channel.mqtt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import it.greenvulcano.gvesb.channel.mqtt.MqttChannel.SubscriptionListener;
+
+/**
+ * Channels of different nodes subscribing the same consumer group share the messages of the topic
+ */
+public class SharedSubscriptionTest {
+
+	private static final int NODES = 3;
+	private static final int MESSAGES = 300;
+	
+	private EmbeddedBroker broker;
+	private final List<MqttChannel> channels = new ArrayList<>();
+	private final List<CountingListener> consumers = new ArrayList<>();
+	
+	@Before
+	public void setUp() throws Exception {
+		broker = new EmbeddedBroker();
+		for (int n = 0; n < NODES; n++) {
+			MqttChannel channel = new MqttChannel("tcp", "127.0.0.1", broker.getPort(), null, null, "orders", "test" + n, "test/orders@node" + n,
+												  true, 10, 1, null, MemoryPersistence::new, new ReconnectPolicy(100, 1000, 5000));
+			CountingListener consumer = new CountingListener();
+			channel.registerListener(consumer);
+			channel.start().get(5, TimeUnit.SECONDS);
+			channels.add(channel);
+			consumers.add(consumer);
+		}
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		channels.forEach(MqttChannel::dismiss);
+		if (broker != null) {
+			broker.close();
+		}
+	}
+	
+	@Test
+	public void consumersShareTheLoad() throws Exception {
+		try (Producer producer = new Producer()) {
+			// the subscriptions are acknowledged asynchronously: wait until every node receives something.
+			// The broker does not dispatch in round robin, so a node may be idle in the following bursts
+			long deadline = System.currentTimeMillis() + 10000;
+			while (consumers.stream().anyMatch(consumer -> consumer.received.get() == 0)) {
+				assertTrue("Every node takes a share of the load: " + consumers.stream().map(consumer -> consumer.received.toString()).collect(Collectors.joining(",")),
+						   System.currentTimeMillis() < deadline);
+				producer.send("orders/warmup");
+				Thread.sleep(20);
+			}
+			Thread.sleep(200);
+			consumers.forEach(consumer -> consumer.received.set(0));
+			
+			for (int i = 0; i < MESSAGES; i++) {
+				producer.send("orders/" + i);
+			}
+			
+			deadline = System.currentTimeMillis() + 10000;
+			while (total() < MESSAGES && System.currentTimeMillis() < deadline) {
+				Thread.sleep(20);
+			}
+			Thread.sleep(200);
+		}
+		
+		assertEquals("Each message is processed by a single node", MESSAGES, total());
+	}
+	
+	private int total() {
+		return consumers.stream().mapToInt(consumer -> consumer.received.get()).sum();
+	}
+	
+	private static class CountingListener implements SubscriptionListener {
+		
+		final AtomicInteger received = new AtomicInteger();
+		
+		@Override
+		public String getTopic() {
+			return "orders/+";
+		}
+		
+		@Override
+		public String getGroup() {
+			return "workers";
+		}
+		
+		@Override
+		public Integer getQoS() {
+			return 1;
+		}
+		
+		@Override
+		public void stop() {
+		}
+		
+		@Override
+		public void processMessage(String topic, MqttMessage message) {
+			received.incrementAndGet();
+		}
+	}
+	
+	private class Producer implements AutoCloseable {
+		
+		private final MqttClient client;
+		
+		Producer() throws MqttException {
+			client = new MqttClient(broker.getEndpoint(), "producer", new MemoryPersistence());
+			client.connect();
+		}
+		
+		void send(String topic) throws MqttException {
+			client.publish(topic, new byte[] { 1 }, 1, false);
+		}
+		
+		@Override
+		public void close() throws MqttException {
+			client.disconnect();
+			client.close();
+		}
+	}
+}
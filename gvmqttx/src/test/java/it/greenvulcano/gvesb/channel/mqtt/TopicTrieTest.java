@@ -0,0 +1,122 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 GreenVulcano ESB Open Source Project.
+ * All rights reserved.
+ *
+ * This file is part of GreenVulcano ESB.
+ *
+ * GreenVulcano ESB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GreenVulcano ESB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with GreenVulcano ESB. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package it.greenvulcano.gvesb.channel.mqtt;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Function;
+
+import org.junit.Test;
+
+/**
+ * Topic filters are matched as required by MQTT 3.1.1, section 4.7
+ */
+public class TopicTrieTest {
+
+	private static Set<String> match(String topic, String... filters) {
+		TopicTrie<String> trie = new TopicTrie<>(Arrays.asList(filters), Function.identity());
+		return new HashSet<>(trie.match(topic));
+	}
+
+	private static Set<String> setOf(String... filters) {
+		return new HashSet<>(Arrays.asList(filters));
+	}
+
+	@Test
+	public void testExactFilters() {
+		assertEquals(setOf("a/b"), match("a/b", "a/b", "a", "a/b/c", "a/c"));
+		assertTrue(match("a/b", "A/b", "a/b/", "/a/b").isEmpty());
+	}
+
+	@Test
+	public void testSingleLevelMatchesEmptyLevel() {
+		assertEquals(setOf("a/+/c"), match("a//c", "a/+/c"));
+		assertEquals(setOf("a/+"), match("a/", "a/+"));
+		assertEquals(setOf("+/b"), match("/b", "+/b"));
+		assertEquals(setOf("+/+"), match("/", "+/+"));
+	}
+
+	@Test
+	public void testSingleLevelMatchesOneLevelOnly() {
+		assertEquals(setOf("a/+"), match("a/b", "a/+", "+", "a/+/+"));
+		assertTrue(match("a/b/c", "a/+").isEmpty());
+		assertTrue(match("a", "a/+").isEmpty());
+	}
+
+	@Test
+	public void testMultiLevelMatchesParent() {
+		assertEquals(setOf("a/#", "#"), match("a", "a/#", "#", "a/b/#"));
+		assertEquals(setOf("a/b/#", "a/#", "#"), match("a/b", "a/#", "#", "a/b/#"));
+		assertEquals(setOf("a/+/#"), match("a/b", "a/+/#"));
+		assertTrue(match("ab", "a/#").isEmpty());
+	}
+
+	@Test
+	public void testMultiLevelMatchesAnyDepth() {
+		assertEquals(setOf("a/#"), match("a/b/c/d", "a/#"));
+		assertEquals(setOf("a/#"), match("a//", "a/#"));
+		assertEquals(setOf("#"), match("/", "#"));
+	}
+
+	@Test
+	public void testWildcardsInFirstLevelSkipSystemTopics() {
+		assertTrue(match("$SYS/broker/uptime", "#", "+/broker/uptime", "+/#").isEmpty());
+		assertTrue(match("$SYS", "#", "+").isEmpty());
+	}
+
+	@Test
+	public void testSystemTopicsMatchExplicitFirstLevel() {
+		assertEquals(setOf("$SYS/#", "$SYS/+/uptime", "$SYS/broker/uptime"),
+					 match("$SYS/broker/uptime", "$SYS/#", "$SYS/+/uptime", "$SYS/broker/uptime", "#"));
+		assertEquals(setOf("$SYS/#"), match("$SYS", "$SYS/#"));
+	}
+
+	@Test
+	public void testDollarAfterFirstLevelIsPlain() {
+		assertEquals(setOf("#", "a/+"), match("a/$b", "#", "a/+"));
+	}
+
+	@Test
+	public void testValuesSharingFilter() {
+		TopicTrie<Integer> trie = new TopicTrie<>(Arrays.asList(1, 2, 3), value -> value < 3 ? "a/+" : "a/b");
+		assertEquals(new HashSet<>(Arrays.asList(1, 2, 3)), new HashSet<>(trie.match("a/b")));
+		assertEquals(new HashSet<>(Arrays.asList(1, 2)), new HashSet<>(trie.match("a/c")));
+	}
+
+	@Test
+	public void testEmptyTrie() {
+		assertEquals(Collections.emptyList(), TopicTrie.<String>empty().match("a/b"));
+	}
+
+	@Test
+	public void testSplitKeepsEmptyLevels() {
+		assertArrayEquals(new String[] { "a", "", "b" }, TopicTrie.split("a//b"));
+		assertArrayEquals(new String[] { "", "a" }, TopicTrie.split("/a"));
+		assertArrayEquals(new String[] { "a", "" }, TopicTrie.split("a/"));
+		assertArrayEquals(new String[] { "" }, TopicTrie.split(""));
+	}
+
+}